@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2013 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.msgpack.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.blockwithme.msgpack.Unpacker;
+import com.blockwithme.msgpack.impl.MessagePackPacker;
+import com.blockwithme.msgpack.impl.MessagePackUnpacker;
+import com.blockwithme.util.DataInputBuffer;
+import com.blockwithme.util.DataOutputBuffer;
+
+/**
+ * Measures the head byte dispatch of MessagePackUnpacker, on a stream
+ * mixing all the value types: fix and sized ints, floats, constants, fix
+ * and sized raws, arrays and maps.
+ *
+ * @author monster
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 8, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(3)
+public class UnpackerBenchmark {
+
+    /** The number of records in the stream. */
+    private static final int RECORDS = 1000;
+
+    /** The number of values in a record. */
+    private static final int VALUES = 12;
+
+    /** The stream. */
+    private byte[] bytes;
+
+    /** The size of the stream. */
+    private int size;
+
+    @Setup
+    public void setup() throws IOException {
+        final DataOutputBuffer dob = new DataOutputBuffer(RECORDS * 512);
+        final MessagePackPacker p = new MessagePackPacker(dob);
+        final byte[] blob = new byte[300];
+        for (int i = 0; i < RECORDS; i++) {
+            p.writeArrayBegin(VALUES);
+            p.writeInt(i & 0x7F);
+            p.writeInt(-(i & 0x1F) - 1);
+            p.writeInt(1000 + i);
+            p.writeInt(100000 + i);
+            p.writeLong(1L << 40 | i);
+            p.writeDouble(i * 0.5);
+            p.writeBoolean((i & 1) == 0);
+            p.writeNil();
+            p.writeUTF("name" + i);
+            p.writeUTF("a somewhat longer string, over 31 bytes, " + i);
+            p.writeMapBegin(2);
+            p.writeUTF("x");
+            p.writeInt(i);
+            p.writeUTF("y");
+            p.writeFloat(i);
+            p.writeMapEnd();
+            p.write(blob);
+            p.writeArrayEnd();
+        }
+        p.close();
+        bytes = dob.buffer();
+        size = dob.size();
+    }
+
+    private Unpacker newUnpacker() {
+        return new MessagePackUnpacker(new DataInputBuffer(bytes, 0, size));
+    }
+
+    /** Skips every record. */
+    @Benchmark
+    public void skip() throws IOException {
+        final Unpacker u = newUnpacker();
+        for (int i = 0; i < RECORDS; i++) {
+            u.skip();
+        }
+    }
+
+    /** Reads every value, as the type returned by getNextType(). */
+    @Benchmark
+    public void readByType(final Blackhole bh) throws IOException {
+        final Unpacker u = newUnpacker();
+        for (int i = 0; i < RECORDS; i++) {
+            final int values = u.readArrayBegin();
+            for (int v = 0; v < values; v++) {
+                switch (u.getNextType()) {
+                case INTEGER:
+                    bh.consume(u.readLong());
+                    break;
+                case FLOAT:
+                    bh.consume(u.readDouble());
+                    break;
+                case BOOLEAN:
+                    bh.consume(u.readBoolean());
+                    break;
+                case NIL:
+                    u.readNil();
+                    break;
+                case RAW:
+                    bh.consume(u.readByteArray());
+                    break;
+                default:
+                    u.skip();
+                }
+            }
+            u.readArrayEnd();
+        }
+    }
+}
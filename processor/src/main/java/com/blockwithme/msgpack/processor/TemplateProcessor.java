@@ -0,0 +1,559 @@
+/*
+ * Copyright (C) 2013 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.msgpack.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+import com.blockwithme.msgpack.templates.GenerateTemplate;
+import com.blockwithme.msgpack.templates.ObjectType;
+
+/**
+ * Generates, at compile time, a template for every class annotated with
+ * GenerateTemplate, and a registry class returning all those templates, in
+ * template ID order, for BasicSchemaManager.
+ *
+ * The generated code accesses the fields directly, like the templates of
+ * TemplateGenerator, but requires no reflection or code generation at
+ * runtime. The registry class name can be specified with the
+ * "msgpack.registry" option; it defaults to GeneratedTemplates, in the
+ * longest common package of the annotated classes.
+ *
+ * Only the annotated classes of the current compilation are in the
+ * registry, so all of them must be compiled together.
+ *
+ * @author monster
+ */
+@SupportedAnnotationTypes("com.blockwithme.msgpack.templates.GenerateTemplate")
+@SupportedOptions(TemplateProcessor.REGISTRY_OPTION)
+public class TemplateProcessor extends AbstractProcessor {
+
+    /** The option specifying the registry class name. */
+    public static final String REGISTRY_OPTION = "msgpack.registry";
+
+    /** Suffix of the generated template class names. */
+    public static final String SUFFIX = "$$Template";
+
+    /** Default simple name of the registry class. */
+    private static final String REGISTRY = "GeneratedTemplates";
+
+    /** A generated template. */
+    private static final class Generated {
+        /** Qualified name of the annotated class. */
+        final String typeName;
+        /** Qualified name of the generated template. */
+        final String templateName;
+        /** First schema introduction. */
+        final int firstSchemaIntroduction;
+
+        Generated(final String typeName, final String templateName,
+                final int firstSchemaIntroduction) {
+            this.typeName = typeName;
+            this.templateName = templateName;
+            this.firstSchemaIntroduction = firstSchemaIntroduction;
+        }
+    }
+
+    /** Orders the generated templates by ID. */
+    private static final Comparator<Generated> BY_ID = new Comparator<Generated>() {
+        @Override
+        public int compare(final Generated g1, final Generated g2) {
+            if (g1.firstSchemaIntroduction != g2.firstSchemaIntroduction) {
+                return (g1.firstSchemaIntroduction < g2.firstSchemaIntroduction) ? -1
+                        : 1;
+            }
+            return g1.typeName.compareTo(g2.typeName);
+        }
+    };
+
+    /** The templates generated so far. */
+    private final List<Generated> generated = new ArrayList<Generated>();
+
+    /** Was the registry written? */
+    private boolean registryWritten;
+
+    /* (non-Javadoc)
+     * @see javax.annotation.processing.AbstractProcessor#getSupportedSourceVersion()
+     */
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    /* (non-Javadoc)
+     * @see javax.annotation.processing.AbstractProcessor#process(java.util.Set, javax.annotation.processing.RoundEnvironment)
+     */
+    @Override
+    public boolean process(final Set<? extends TypeElement> annotations,
+            final RoundEnvironment roundEnv) {
+        boolean found = false;
+        for (final Element e : roundEnv
+                .getElementsAnnotatedWith(GenerateTemplate.class)) {
+            found = true;
+            try {
+                generate(e);
+            } catch (final IllegalArgumentException ex) {
+                error(e, ex.getMessage());
+            } catch (final IOException ex) {
+                error(e, "Could not write template: " + ex);
+            }
+        }
+        // The registry is written in the round after the templates, so that
+        // it is not created in the last round.
+        if (!found && !registryWritten && !generated.isEmpty()) {
+            registryWritten = true;
+            try {
+                writeRegistry();
+            } catch (final IOException ex) {
+                error(null, "Could not write registry: " + ex);
+            }
+        }
+        return true;
+    }
+
+    /** Reports an error. */
+    private void error(final Element e, final String msg) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, msg,
+                e);
+    }
+
+    /** Returns the package name of an element. */
+    private String packageOf(final Element e) {
+        return processingEnv.getElementUtils().getPackageOf(e)
+                .getQualifiedName().toString();
+    }
+
+    /** Fails if type cannot be accessed and instantiated from its package. */
+    private void checkType(final TypeElement type) {
+        if (type.getKind() != ElementKind.CLASS) {
+            throw new IllegalArgumentException("Not a class: " + type);
+        }
+        if (type.getModifiers().contains(Modifier.ABSTRACT)) {
+            throw new IllegalArgumentException("Not a concrete class: " + type);
+        }
+        Element e = type;
+        while (e instanceof TypeElement) {
+            final TypeElement t = (TypeElement) e;
+            if (t.getModifiers().contains(Modifier.PRIVATE)) {
+                throw new IllegalArgumentException("Class " + t
+                        + " cannot be private");
+            }
+            if ((t.getNestingKind() == NestingKind.MEMBER)
+                    && !t.getModifiers().contains(Modifier.STATIC)) {
+                throw new IllegalArgumentException("Class " + t
+                        + " must be static");
+            }
+            if ((t.getNestingKind() == NestingKind.LOCAL)
+                    || (t.getNestingKind() == NestingKind.ANONYMOUS)) {
+                throw new IllegalArgumentException("Class " + t
+                        + " cannot be local");
+            }
+            e = t.getEnclosingElement();
+        }
+        for (final ExecutableElement c : ElementFilter.constructorsIn(type
+                .getEnclosedElements())) {
+            if (c.getParameters().isEmpty()
+                    && !c.getModifiers().contains(Modifier.PRIVATE)) {
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Class " + type
+                + " needs a non-private no-argument constructor");
+    }
+
+    /** Finds a serialized field, in type or its super-classes. */
+    private VariableElement field(final TypeElement type, final String name) {
+        final String pkg = packageOf(type);
+        TypeElement t = type;
+        while (t != null) {
+            for (final VariableElement f : ElementFilter.fieldsIn(t
+                    .getEnclosedElements())) {
+                if (f.getSimpleName().contentEquals(name)) {
+                    final Set<Modifier> mod = f.getModifiers();
+                    if (mod.contains(Modifier.STATIC)
+                            || mod.contains(Modifier.PRIVATE)
+                            || mod.contains(Modifier.FINAL)) {
+                        throw new IllegalArgumentException("Field " + name
+                                + " cannot be static, private or final");
+                    }
+                    if (!mod.contains(Modifier.PUBLIC)
+                            && !pkg.equals(packageOf(t))) {
+                        throw new IllegalArgumentException("Field " + name
+                                + " not accessible from package of " + type);
+                    }
+                    return f;
+                }
+            }
+            final TypeMirror sup = t.getSuperclass();
+            t = (sup.getKind() == TypeKind.DECLARED) ? (TypeElement) ((DeclaredType) sup)
+                    .asElement() : null;
+        }
+        throw new IllegalArgumentException("Field " + name + " not found in "
+                + type);
+    }
+
+    /** Returns the Packer/Unpacker method suffix for a primitive type. */
+    private static String primitive(final TypeMirror t) {
+        final String name = t.getKind().name();
+        return name.charAt(0) + name.substring(1).toLowerCase();
+    }
+
+    /** Returns the Java source literal of a String. */
+    private static String literal(final String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /** Generates the template for the annotated class. */
+    private void generate(final Element e) throws IOException {
+        if (!(e instanceof TypeElement)) {
+            throw new IllegalArgumentException("Not a class: " + e);
+        }
+        final TypeElement type = (TypeElement) e;
+        checkType(type);
+        final GenerateTemplate ann = type.getAnnotation(GenerateTemplate.class);
+        final ObjectType objectType = ann.objectType();
+        if ((objectType != ObjectType.ARRAY) && (objectType != ObjectType.MAP)) {
+            throw new IllegalArgumentException("Unsupported ObjectType: "
+                    + objectType);
+        }
+        final String[] names = ann.fields();
+        final VariableElement[] fields = new VariableElement[names.length];
+        final Set<String> seen = new HashSet<String>();
+        for (int i = 0; i < names.length; i++) {
+            if (!seen.add(names[i])) {
+                throw new IllegalArgumentException("Duplicate field "
+                        + names[i]);
+            }
+            fields[i] = field(type, names[i]);
+        }
+        final boolean map = (objectType == ObjectType.MAP);
+        final int fixedSize = (ann.fixedSize() == GenerateTemplate.FIELD_COUNT) ? names.length
+                : ann.fixedSize();
+        if ((fixedSize >= 0) && (fixedSize != names.length)) {
+            throw new IllegalArgumentException("fixedSize " + fixedSize
+                    + " does not match field count " + names.length);
+        }
+
+        final String pkg = packageOf(type);
+        final String binaryName = processingEnv.getElementUtils()
+                .getBinaryName(type).toString();
+        final String simpleName = (pkg.isEmpty() ? binaryName : binaryName
+                .substring(pkg.length() + 1)) + SUFFIX;
+        final String templateName = pkg.isEmpty() ? simpleName : pkg + "."
+                + simpleName;
+        final String typeName = type.getQualifiedName().toString();
+
+        final StringBuilder b = new StringBuilder();
+        if (!pkg.isEmpty()) {
+            b.append("package ").append(pkg).append(";\n\n");
+        }
+        b.append("import java.io.IOException;\n\n");
+        b.append("import com.blockwithme.msgpack.templates.AbstractTemplate;\n");
+        b.append("import com.blockwithme.msgpack.templates.ObjectType;\n");
+        b.append("import com.blockwithme.msgpack.templates.PackerContext;\n");
+        b.append("import com.blockwithme.msgpack.templates.TrackingType;\n");
+        b.append("import com.blockwithme.msgpack.templates.UnpackerContext;\n\n");
+        b.append("/** Template for ").append(typeName)
+                .append(". Generated by TemplateProcessor; do not edit. */\n");
+        b.append("@SuppressWarnings({ \"rawtypes\", \"unchecked\" })\n");
+        b.append("public final class ").append(simpleName)
+                .append(" extends AbstractTemplate<").append(typeName)
+                .append("> {\n\n");
+
+        b.append("    public ").append(simpleName).append("() {\n");
+        b.append("        super(null, ").append(typeName).append(".class, ")
+                .append(ann.firstSchemaIntroduction())
+                .append(", ObjectType.").append(objectType)
+                .append(", TrackingType.").append(ann.trackingType())
+                .append(", ").append(fixedSize).append(");\n");
+        b.append("    }\n\n");
+
+        if (fixedSize < 0) {
+            b.append("    @Override\n");
+            b.append("    public int getSpaceRequired(final PackerContext context, final ")
+                    .append(typeName).append(" v) {\n");
+            b.append("        return ").append(names.length).append(";\n");
+            b.append("    }\n\n");
+        }
+
+        b.append("    @Override\n");
+        b.append("    public ").append(typeName)
+                .append(" preCreate(final int size) {\n");
+        b.append("        return new ").append(typeName).append("();\n");
+        b.append("    }\n\n");
+
+        b.append("    @Override\n");
+        b.append("    public void writeData(final PackerContext context, final int size, final ")
+                .append(typeName).append(" v) throws IOException {\n");
+        for (final VariableElement f : fields) {
+            final String name = f.getSimpleName().toString();
+            if (map) {
+                b.append("        context.packer.writeUTF(")
+                        .append(literal(name)).append(");\n");
+            }
+            if (f.asType().getKind().isPrimitive()) {
+                b.append("        context.packer.write")
+                        .append(primitive(f.asType())).append("(v.")
+                        .append(name).append(");\n");
+            } else {
+                b.append("        context.objectPacker.writeObject((Object) v.")
+                        .append(name).append(");\n");
+            }
+        }
+        b.append("    }\n\n");
+
+        b.append("    @Override\n");
+        b.append("    public ").append(typeName)
+                .append(" readData(final UnpackerContext context, final ")
+                .append(typeName)
+                .append(" preCreated, final int size) throws IOException {\n");
+        b.append("        final ").append(typeName)
+                .append(" v = (preCreated == null) ? new ").append(typeName)
+                .append("() : preCreated;\n");
+        if (map) {
+            b.append("        readHeaderValue(context, v, size);\n");
+            b.append("        for (int i = 0; i < size; i++) {\n");
+            b.append("            final String key = context.unpacker.readUTF();\n");
+            b.append("            switch (key) {\n");
+        }
+        for (int i = 0; i < fields.length; i++) {
+            final VariableElement f = fields[i];
+            final String name = f.getSimpleName().toString();
+            final String indent;
+            if (map) {
+                b.append("            case ").append(literal(name))
+                        .append(":\n");
+                indent = "                ";
+            } else if (fixedSize < 0) {
+                b.append("        if (size > ").append(i).append(") {\n");
+                indent = "            ";
+            } else {
+                indent = "        ";
+            }
+            b.append(indent).append("v.").append(name).append(" = ");
+            final TypeMirror ft = f.asType();
+            if (ft.getKind().isPrimitive()) {
+                b.append("context.unpacker.read").append(primitive(ft))
+                        .append("();\n");
+            } else {
+                b.append("(")
+                        .append(processingEnv.getTypeUtils().erasure(ft))
+                        .append(") context.objectUnpacker.readObject();\n");
+            }
+            if (map) {
+                b.append(indent).append("break;\n");
+            } else if (fixedSize < 0) {
+                b.append("        }\n");
+            }
+        }
+        if (map) {
+            b.append("            default:\n");
+            b.append("                // Written by another version of the class\n");
+            b.append("                context.unpacker.skip();\n");
+            b.append("            }\n");
+            b.append("        }\n");
+        }
+        b.append("        return v;\n");
+        b.append("    }\n");
+
+        if (!map && (fixedSize > 0)) {
+            generateColumns(b, typeName, fields);
+        }
+        b.append("}\n");
+
+        try (Writer w = processingEnv.getFiler()
+                .createSourceFile(templateName, type).openWriter()) {
+            w.write(b.toString());
+        }
+        generated.add(new Generated(typeName, templateName, ann
+                .firstSchemaIntroduction()));
+    }
+
+    /** Generates the column methods, for the COLUMNAR stream option. */
+    private void generateColumns(final StringBuilder b, final String typeName,
+            final VariableElement[] fields) {
+        b.append("\n    @Override\n");
+        b.append("    protected boolean supportsColumns() {\n");
+        b.append("        return true;\n");
+        b.append("    }\n\n");
+
+        b.append("    @Override\n");
+        b.append("    protected void writeColumn(final PackerContext context, final int field, final ")
+                .append(typeName).append("[] v) throws IOException {\n");
+        b.append("        switch (field) {\n");
+        for (int i = 0; i < fields.length; i++) {
+            final VariableElement f = fields[i];
+            final String name = f.getSimpleName().toString();
+            b.append("        case ").append(i).append(":\n");
+            b.append("            for (final ").append(typeName)
+                    .append(" t : v) {\n");
+            if (f.asType().getKind().isPrimitive()) {
+                b.append("                context.packer.write")
+                        .append(primitive(f.asType())).append("(t.")
+                        .append(name).append(");\n");
+            } else {
+                b.append("                context.objectPacker.writeObject((Object) t.")
+                        .append(name).append(");\n");
+            }
+            b.append("            }\n");
+            b.append("            break;\n");
+        }
+        b.append("        default:\n");
+        b.append("            throw new IllegalArgumentException(\"field: \" + field);\n");
+        b.append("        }\n");
+        b.append("    }\n\n");
+
+        b.append("    @Override\n");
+        b.append("    protected void readColumn(final UnpackerContext context, final int field, final ")
+                .append(typeName)
+                .append("[] values, final int size) throws IOException {\n");
+        b.append("        switch (field) {\n");
+        for (int i = 0; i < fields.length; i++) {
+            final VariableElement f = fields[i];
+            final String name = f.getSimpleName().toString();
+            final TypeMirror ft = f.asType();
+            b.append("        case ").append(i).append(":\n");
+            if (hasBulkRead(ft)) {
+                // The column is a run of values of the enclosing array
+                final String p = primitive(ft);
+                final String java = ft.getKind().name().toLowerCase();
+                b.append("            {\n");
+                b.append("                final ").append(java)
+                        .append("[] column = new ").append(java)
+                        .append("[size];\n");
+                b.append("                if (context.unpacker.read")
+                        .append(p).append("s(column, 0, size) != size) {\n");
+                b.append("                    throw new IOException(\"Column \" + field + \" is truncated\");\n");
+                b.append("                }\n");
+                b.append("                for (int i = 0; i < size; i++) {\n");
+                b.append("                    values[i].").append(name)
+                        .append(" = column[i];\n");
+                b.append("                }\n");
+                b.append("            }\n");
+            } else {
+                b.append("            for (int i = 0; i < size; i++) {\n");
+                b.append("                values[i].").append(name)
+                        .append(" = ");
+                if (ft.getKind().isPrimitive()) {
+                    b.append("context.unpacker.read").append(primitive(ft))
+                            .append("();\n");
+                } else {
+                    b.append("(")
+                            .append(processingEnv.getTypeUtils().erasure(ft))
+                            .append(") context.objectUnpacker.readObject();\n");
+                }
+                b.append("            }\n");
+            }
+            b.append("            break;\n");
+        }
+        b.append("        default:\n");
+        b.append("            throw new IllegalArgumentException(\"field: \" + field);\n");
+        b.append("        }\n");
+        b.append("    }\n");
+    }
+
+    /** Can a column of this type be read with Unpacker.readXs()? */
+    private static boolean hasBulkRead(final TypeMirror t) {
+        final TypeKind kind = t.getKind();
+        return (kind == TypeKind.INT) || (kind == TypeKind.LONG)
+                || (kind == TypeKind.DOUBLE);
+    }
+
+    /** Returns the registry class name. */
+    private String registryName() {
+        final String option = processingEnv.getOptions().get(REGISTRY_OPTION);
+        if (option != null) {
+            return option;
+        }
+        String common = null;
+        for (final Generated g : generated) {
+            final int dot = g.templateName.lastIndexOf('.');
+            final String pkg = (dot < 0) ? "" : g.templateName.substring(0,
+                    dot);
+            if (common == null) {
+                common = pkg;
+            } else {
+                while (!pkg.equals(common) && !pkg.startsWith(common + ".")) {
+                    final int last = common.lastIndexOf('.');
+                    common = (last < 0) ? "" : common.substring(0, last);
+                    if (common.isEmpty()) {
+                        break;
+                    }
+                }
+            }
+        }
+        return ((common == null) || common.isEmpty()) ? REGISTRY : common
+                + "." + REGISTRY;
+    }
+
+    /** Writes the registry class. */
+    private void writeRegistry() throws IOException {
+        Collections.sort(generated, BY_ID);
+        final String registryName = registryName();
+        final int dot = registryName.lastIndexOf('.');
+        final String pkg = (dot < 0) ? "" : registryName.substring(0, dot);
+        final String simpleName = registryName.substring(dot + 1);
+
+        final StringBuilder b = new StringBuilder();
+        if (!pkg.isEmpty()) {
+            b.append("package ").append(pkg).append(";\n\n");
+        }
+        b.append("import com.blockwithme.msgpack.templates.Template;\n\n");
+        b.append("/** The templates generated by TemplateProcessor; do not edit. */\n");
+        b.append("public final class ").append(simpleName).append(" {\n\n");
+        b.append("    private ").append(simpleName).append("() {\n");
+        b.append("        // NOP\n");
+        b.append("    }\n\n");
+        b.append("    /** Returns new instances of the generated templates, in template ID order. */\n");
+        b.append("    public static Template<?>[] newTemplates() {\n");
+        b.append("        return new Template<?>[] {\n");
+        for (final Generated g : generated) {
+            b.append("            new ").append(g.templateName).append("(),\n");
+        }
+        b.append("        };\n");
+        b.append("    }\n");
+        b.append("}\n");
+
+        try (Writer w = processingEnv.getFiler()
+                .createSourceFile(registryName).openWriter()) {
+            w.write(b.toString());
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2013 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.msgpack.processor;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaCompiler.CompilationTask;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.blockwithme.msgpack.impl.MessagePackPacker;
+import com.blockwithme.msgpack.impl.MessagePackUnpacker;
+import com.blockwithme.msgpack.impl.ObjectPackerImpl;
+import com.blockwithme.msgpack.impl.ObjectUnpackerImpl;
+import com.blockwithme.msgpack.schema.BasicSchemaManager;
+import com.blockwithme.msgpack.schema.SchemaManager;
+import com.blockwithme.msgpack.templates.Context;
+import com.blockwithme.msgpack.templates.PackerContext;
+import com.blockwithme.msgpack.templates.Template;
+import com.blockwithme.msgpack.templates.UnpackerContext;
+import com.blockwithme.util.DataInputBuffer;
+import com.blockwithme.util.DataOutputBuffer;
+
+/**
+ * Compiles the annotated classes in src/test/samples with the
+ * TemplateProcessor, checks the generated sources, and round-trips the
+ * samples through the generated templates.
+ *
+ * @author monster
+ */
+public class TestTemplateProcessor {
+
+    /** The package of the samples. */
+    private static final String PKG = "com.blockwithme.msgpack.processor.sample";
+
+    /** The directory of the sample sources. */
+    private static final File SAMPLES = new File("src/test/samples/"
+            + PKG.replace('.', '/'));
+
+    /** The directory of the generated sources. */
+    private static File generated;
+
+    /** Loads the compiled samples. */
+    private static ClassLoader loader;
+
+    /** Compiles the samples, once. */
+    private static synchronized ClassLoader compiled() throws IOException {
+        if (loader == null) {
+            final File dir = Files.createTempDirectory("processor").toFile();
+            final File classes = new File(dir, "classes");
+            final File sources = new File(dir, "generated");
+            classes.mkdir();
+            sources.mkdir();
+            final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+            try (StandardJavaFileManager fm = compiler.getStandardFileManager(
+                    null, null, StandardCharsets.UTF_8)) {
+                final CompilationTask task = compiler.getTask(null, fm, null,
+                        Arrays.asList("-d", classes.getPath(), "-s",
+                                sources.getPath(), "-classpath",
+                                System.getProperty("java.class.path")), null,
+                        fm.getJavaFileObjects(SAMPLES.listFiles()));
+                task.setProcessors(Collections
+                        .singletonList(new TemplateProcessor()));
+                Assert.assertTrue("samples compile", task.call());
+            }
+            generated = new File(sources, PKG.replace('.', '/'));
+            loader = new URLClassLoader(new URL[] { classes.toURI().toURL() },
+                    TestTemplateProcessor.class.getClassLoader());
+        }
+        return loader;
+    }
+
+    /** Returns a generated source. */
+    private static String source(final String simpleName) throws IOException {
+        compiled();
+        return new String(Files.readAllBytes(new File(generated, simpleName
+                + ".java").toPath()), StandardCharsets.UTF_8);
+    }
+
+    /** Calls the static "of" factory of a sample class. */
+    private static Object sample(final String simpleName,
+            final Object... args) throws Exception {
+        for (final Method m : compiled().loadClass(PKG + "." + simpleName)
+                .getMethods()) {
+            if (m.getName().equals("of")) {
+                return m.invoke(null, args);
+            }
+        }
+        throw new NoSuchMethodException(simpleName + ".of");
+    }
+
+    /** Returns new instances of the generated templates. */
+    @SuppressWarnings("rawtypes")
+    private static Template[] templates() throws Exception {
+        return (Template[]) compiled().loadClass(PKG + ".GeneratedTemplates")
+                .getMethod("newTemplates").invoke(null);
+    }
+
+    private static SchemaManager newSchemaManager() throws Exception {
+        return new BasicSchemaManager(templates()) {
+            @Override
+            protected int getBasicTemplateCount(final int schemaID) {
+                return 28;
+            }
+        };
+    }
+
+    /** Writes the objects, and returns what was written. */
+    private static DataOutputBuffer write(final int options,
+            final Object... objects) throws Exception {
+        final DataOutputBuffer dob = new DataOutputBuffer(2048);
+        final PackerContext pc = new PackerContext(newSchemaManager());
+        pc.schemaID = 42;
+        pc.options = options;
+        final ObjectPackerImpl packer = new ObjectPackerImpl(
+                new MessagePackPacker(dob), pc);
+        for (final Object o : objects) {
+            packer.writeObject(o, false);
+        }
+        packer.packer().close();
+        return dob;
+    }
+
+    private static ObjectUnpackerImpl reader(final DataOutputBuffer dob)
+            throws Exception {
+        return new ObjectUnpackerImpl(new MessagePackUnpacker(
+                new DataInputBuffer(dob.buffer(), 0, dob.size())),
+                new UnpackerContext(newSchemaManager()));
+    }
+
+    @Test
+    public void testRegistryOrder() throws Exception {
+        // By firstSchemaIntroduction, and then by name
+        final String registry = source("GeneratedTemplates");
+        final int zone = registry.indexOf("new " + PKG + ".Zone$$Template()");
+        final int label = registry
+                .indexOf("new " + PKG + ".Label$$Template()");
+        final int point = registry
+                .indexOf("new " + PKG + ".Point$$Template()");
+        Assert.assertTrue(registry, (zone >= 0) && (zone < label)
+                && (label < point));
+        @SuppressWarnings("rawtypes")
+        final Template[] templates = templates();
+        Assert.assertEquals(3, templates.length);
+        Assert.assertEquals(PKG + ".Zone", templates[0].getType().getName());
+        Assert.assertEquals(PKG + ".Label", templates[1].getType().getName());
+        Assert.assertEquals(PKG + ".Point", templates[2].getType().getName());
+    }
+
+    @Test
+    public void testGeneratedSources() throws Exception {
+        final String point = source("Point$$Template");
+        Assert.assertTrue(point.contains("public final class Point$$Template"
+                + " extends AbstractTemplate<" + PKG + ".Point>"));
+        Assert.assertTrue(point.contains("ObjectType.ARRAY, "
+                + "TrackingType.IDENTITY, 3);"));
+        Assert.assertTrue(point.contains("context.packer.writeInt(v.x);"));
+        Assert.assertTrue(point.contains("v.y = context.unpacker.readLong();"));
+        Assert.assertTrue(point.contains("protected boolean supportsColumns()"));
+        Assert.assertTrue(point.contains("context.unpacker.readInts(column, 0, size)"));
+
+        final String label = source("Label$$Template");
+        Assert.assertTrue(label.contains("ObjectType.MAP"));
+        Assert.assertTrue(label.contains("context.packer.writeUTF(\"weight\");"));
+        Assert.assertTrue(label.contains("case \"visible\":"));
+        Assert.assertFalse(label.contains("supportsColumns"));
+
+        final String zone = source("Zone$$Template");
+        Assert.assertTrue(zone.contains("TrackingType.IDENTITY, -1);"));
+        Assert.assertTrue(zone.contains("if (size > 2) {"));
+        Assert.assertTrue(zone.contains("public int getSpaceRequired("));
+        Assert.assertFalse(zone.contains("supportsColumns"));
+    }
+
+    @Test
+    public void testArrayAndMap() throws Exception {
+        final Object point = sample("Point", 1, 1L << 40, "p");
+        final Object label = sample("Label", "text", 0.5, true);
+        final Object points = Array.newInstance(point.getClass(), 2);
+        Array.set(points, 0, point);
+        Array.set(points, 1, sample("Point", -1, -2L, null));
+        final Object zone = sample("Zone", 'z', points, label);
+        final Object empty = sample("Zone", '€', null, null);
+
+        final DataOutputBuffer dob = write(0, zone, label, empty);
+        final ObjectUnpackerImpl oui = reader(dob);
+        final Object zoneCopy = oui.readObject();
+        Assert.assertEquals(zone, zoneCopy);
+        Assert.assertNotSame(zone, zoneCopy);
+        Assert.assertEquals(label, oui.readObject());
+        Assert.assertEquals(empty, oui.readObject());
+    }
+
+    @Test
+    public void testColumnar() throws Exception {
+        final Object points = Array.newInstance(compiled().loadClass(
+                PKG + ".Point"), 5);
+        for (int i = 0; i < 5; i++) {
+            Array.set(points, i, sample("Point", i + 1, 100L * i, "p" + i));
+        }
+        final DataOutputBuffer dob = write(Context.COLUMNAR, points);
+        // All x first, as consecutive positive fixnums
+        final byte[] bytes = Arrays.copyOf(dob.buffer(), dob.size());
+        boolean found = false;
+        for (int i = 0; !found && (i + 5 <= bytes.length); i++) {
+            found = Arrays.equals(new byte[] { 1, 2, 3, 4, 5 },
+                    Arrays.copyOfRange(bytes, i, i + 5));
+        }
+        Assert.assertTrue(found);
+
+        final Object copy = reader(dob).readObject(false);
+        Assert.assertEquals(points.getClass(), copy.getClass());
+        Assert.assertTrue(Arrays.equals((Object[]) points, (Object[]) copy));
+    }
+}
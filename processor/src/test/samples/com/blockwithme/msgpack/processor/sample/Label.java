@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2013 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.msgpack.processor.sample;
+
+import com.blockwithme.msgpack.templates.GenerateTemplate;
+import com.blockwithme.msgpack.templates.ObjectType;
+
+/**
+ * A MAP sample.
+ *
+ * @author monster
+ */
+@GenerateTemplate(fields = { "text", "weight", "visible" }, objectType = ObjectType.MAP, firstSchemaIntroduction = 1)
+public class Label {
+    public String text;
+    double weight;
+    boolean visible;
+
+    /** Returns a new Label. */
+    public static Label of(final String text, final double weight,
+            final boolean visible) {
+        final Label result = new Label();
+        result.text = text;
+        result.weight = weight;
+        result.visible = visible;
+        return result;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (!(obj instanceof Label)) {
+            return false;
+        }
+        final Label other = (Label) obj;
+        return text.equals(other.text) && (weight == other.weight)
+                && (visible == other.visible);
+    }
+
+    @Override
+    public int hashCode() {
+        return text.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "Label(" + text + "," + weight + "," + visible + ")";
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2013 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.msgpack.processor.sample;
+
+import com.blockwithme.msgpack.templates.GenerateTemplate;
+
+/**
+ * A fixed-size ARRAY sample. Final, so that arrays of it are written inline,
+ * and can use the COLUMNAR option.
+ *
+ * @author monster
+ */
+@GenerateTemplate(fields = { "x", "y", "label" }, firstSchemaIntroduction = 1)
+public final class Point {
+    public int x;
+    long y;
+    String label;
+
+    /** Returns a new Point. */
+    public static Point of(final int x, final long y, final String label) {
+        final Point result = new Point();
+        result.x = x;
+        result.y = y;
+        result.label = label;
+        return result;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (!(obj instanceof Point)) {
+            return false;
+        }
+        final Point other = (Point) obj;
+        return (x == other.x) && (y == other.y)
+                && ((label == null) ? (other.label == null) : label
+                        .equals(other.label));
+    }
+
+    @Override
+    public int hashCode() {
+        return x;
+    }
+
+    @Override
+    public String toString() {
+        return "Point(" + x + "," + y + "," + label + ")";
+    }
+}
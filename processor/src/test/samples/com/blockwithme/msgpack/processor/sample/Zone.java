@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2013 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.msgpack.processor.sample;
+
+import java.util.Arrays;
+
+import com.blockwithme.msgpack.templates.GenerateTemplate;
+
+/**
+ * An ARRAY sample of variable size, from the first schema, referencing the
+ * other samples.
+ *
+ * @author monster
+ */
+@GenerateTemplate(fields = { "id", "points", "label" }, fixedSize = -1)
+public class Zone {
+    public char id;
+    Point[] points;
+    Label label;
+
+    /** Returns a new Zone. */
+    public static Zone of(final char id, final Point[] points,
+            final Label label) {
+        final Zone result = new Zone();
+        result.id = id;
+        result.points = points;
+        result.label = label;
+        return result;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (!(obj instanceof Zone)) {
+            return false;
+        }
+        final Zone other = (Zone) obj;
+        return (id == other.id) && Arrays.equals(points, other.points)
+                && ((label == null) ? (other.label == null) : label
+                        .equals(other.label));
+    }
+
+    @Override
+    public int hashCode() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return "Zone(" + id + "," + Arrays.toString(points) + "," + label
+                + ")";
+    }
+}
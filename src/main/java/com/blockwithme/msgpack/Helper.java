@@ -17,15 +17,22 @@ package com.blockwithme.msgpack;
 
 import java.io.DataOutput;
 import java.io.IOException;
-
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+import com.blockwithme.msgpack.impl.BufferedMessagePackPacker;
+import com.blockwithme.msgpack.impl.ByteBufferMessagePackUnpacker;
 import com.blockwithme.msgpack.impl.MessagePackPacker;
-import com.blockwithme.msgpack.impl.MessagePackUnpacker;
+import com.blockwithme.msgpack.impl.ObjectCodec;
 import com.blockwithme.msgpack.impl.ObjectPackerImpl;
 import com.blockwithme.msgpack.impl.ObjectUnpackerImpl;
 import com.blockwithme.msgpack.schema.SchemaManager;
+import com.blockwithme.msgpack.templates.Context;
 import com.blockwithme.msgpack.templates.PackerContext;
 import com.blockwithme.msgpack.templates.UnpackerContext;
-import com.blockwithme.util.DataInputBuffer;
 
 /**
  * Helper class for the MessagePack API.
@@ -39,11 +46,19 @@ public class Helper {
         public final int format;
         /** The schema version. */
         public final int schema;
+        /** The stream options. */
+        public final int options;
 
         /** Constructor */
         public Version(final int format, final int schema) {
+            this(format, schema, 0);
+        }
+
+        /** Constructor */
+        public Version(final int format, final int schema, final int options) {
             this.format = format;
             this.schema = schema;
+            this.options = options;
         }
 
         /** toString */
@@ -58,6 +73,14 @@ public class Helper {
         return new MessagePackPacker(out);
     }
 
+    /**
+     * Creates a new buffered packer. Nothing reaches the DataOutput before
+     * the packer is flushed or closed.
+     */
+    public static Packer newBufferedPacker(final DataOutput out) {
+        return new BufferedMessagePackPacker(out);
+    }
+
     /** Creates a new object packer.
      * @throws IOException */
     public static ObjectPacker newObjectPacker(final DataOutput out,
@@ -75,17 +98,30 @@ public class Helper {
         return newObjectPacker(out, pc);
     }
 
+    /**
+     * Creates a new reusable ObjectCodec, for many small messages. It is not
+     * thread-safe.
+     */
+    public static ObjectCodec newObjectCodec(
+            final SchemaManager schemaManager, final int schema) {
+        return new ObjectCodec(schemaManager, schema);
+    }
+
     /** Creates a new Unpacker for the bytes. */
     public static Unpacker newUnpacker(final byte[] bytes) {
-        return new MessagePackUnpacker(new DataInputBuffer(bytes));
+        return new ByteBufferMessagePackUnpacker(bytes);
+    }
+
+    /** Creates a new Unpacker for the remaining bytes of the ByteBuffer. */
+    public static Unpacker newUnpacker(final ByteBuffer bytes) {
+        return new ByteBufferMessagePackUnpacker(bytes);
     }
 
     /** Creates a new ObjectUnpacker for the bytes.
      * @throws IOException */
     public static ObjectUnpacker newObjectUnpacker(final byte[] bytes,
             final UnpackerContext context) throws IOException {
-        return new ObjectUnpackerImpl(new MessagePackUnpacker(
-                new DataInputBuffer(bytes)), context);
+        return new ObjectUnpackerImpl(newUnpacker(bytes), context);
     }
 
     /** Creates a new ObjectUnpacker for the bytes.
@@ -99,9 +135,10 @@ public class Helper {
      * @throws IOException */
     public static Version getVersion(final byte[] bytes) throws IOException {
         final Unpacker u = newUnpacker(bytes);
-        final int format = u.readIndex();
+        final int formatIndex = u.readIndex();
         final int schema = u.readIndex();
-        return new Version(format, schema);
+        return new Version(formatIndex & Context.FORMAT_MASK, schema,
+                formatIndex >>> Context.FORMAT_BITS);
     }
 
     /** Writes a boolean array. */
@@ -383,11 +420,12 @@ public class Helper {
         if (unpacker.trySkipNil()) {
             return null;
         }
+        if (unpacker.getNextType() == ValueType.RAW) {
+            return readPackedIntArray(unpacker);
+        }
         final int n = unpacker.readArrayBegin();
         final int[] result = new int[n];
-        for (int i = 0; i < n; i++) {
-            result[i] = unpacker.readInt();
-        }
+        unpacker.readInts(result, 0, n);
         unpacker.readArrayEnd();
         return result;
     }
@@ -398,11 +436,12 @@ public class Helper {
         if (unpacker.trySkipNil()) {
             return null;
         }
+        if (unpacker.getNextType() == ValueType.RAW) {
+            return readPackedLongArray(unpacker);
+        }
         final int n = unpacker.readArrayBegin();
         final long[] result = new long[n];
-        for (int i = 0; i < n; i++) {
-            result[i] = unpacker.readLong();
-        }
+        unpacker.readLongs(result, 0, n);
         unpacker.readArrayEnd();
         return result;
     }
@@ -413,6 +452,9 @@ public class Helper {
         if (unpacker.trySkipNil()) {
             return null;
         }
+        if (unpacker.getNextType() == ValueType.RAW) {
+            return readPackedFloatArray(unpacker);
+        }
         final int n = unpacker.readArrayBegin();
         final float[] result = new float[n];
         for (int i = 0; i < n; i++) {
@@ -428,12 +470,211 @@ public class Helper {
         if (unpacker.trySkipNil()) {
             return null;
         }
+        if (unpacker.getNextType() == ValueType.RAW) {
+            return readPackedDoubleArray(unpacker);
+        }
         final int n = unpacker.readArrayBegin();
         final double[] result = new double[n];
-        for (int i = 0; i < n; i++) {
-            result[i] = unpacker.readDouble();
-        }
+        unpacker.readDoubles(result, 0, n);
         unpacker.readArrayEnd();
         return result;
     }
+
+    /** The maximum size of the buffer used to write packed arrays. */
+    private static final int PACKED_CHUNK = 8192;
+
+    /**
+     * Returns the size in bytes of a packed array of n values of width bytes.
+     * Fails if it does not fit in a raw, rather than writing a wrapped size.
+     */
+    private static int packedSize(final int n, final int width)
+            throws IOException {
+        final long size = (long) n * width;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Packed array of " + n + " values of "
+                    + width + " bytes is too big: " + size + " bytes");
+        }
+        return (int) size;
+    }
+
+    /** Returns a buffer to write a packed array of size bytes. */
+    private static ByteBuffer packedBuffer(final int size) {
+        return ByteBuffer.allocate(Math.min(size, PACKED_CHUNK));
+    }
+
+    /** Writes the first bytes of bb, as part of a raw. */
+    private static void writePackedChunk(final Packer packer,
+            final ByteBuffer bb, final int bytes) throws IOException {
+        bb.limit(bytes);
+        bb.position(0);
+        packer.writePartial(bb);
+    }
+
+    /**
+     * Reads a packed array raw, checking that its size is a multiple of
+     * width, and returns its content.
+     */
+    private static ByteBuffer readPacked(final Unpacker unpacker,
+            final int width) throws IOException {
+        final int len = unpacker.readRawBegin();
+        if (len % width != 0) {
+            throw new IOException("Packed array size " + len
+                    + " is not a multiple of " + width);
+        }
+        final ByteBuffer result = unpacker.readPartialByteBuffer(len);
+        unpacker.readRawEnd();
+        return result;
+    }
+
+    /**
+     * Writes a int array in packed form: a single raw, containing the values
+     * big-endian, 4 bytes each.
+     */
+    public static void writePackedIntArray(final Packer packer,
+            final int[] target) throws IOException {
+        if (target == null) {
+            packer.writeNil();
+            return;
+        }
+        final int n = target.length;
+        final int size = packedSize(n, 4);
+        packer.writeRawBegin(size);
+        final ByteBuffer bb = packedBuffer(size);
+        final IntBuffer view = bb.asIntBuffer();
+        int i = 0;
+        while (i < n) {
+            final int count = Math.min(n - i, view.capacity());
+            view.clear();
+            view.put(target, i, count);
+            writePackedChunk(packer, bb, count * 4);
+            i += count;
+        }
+        packer.writeRawEnd();
+    }
+
+    /** Reads a int array in packed form. */
+    public static int[] readPackedIntArray(final Unpacker unpacker)
+            throws IOException {
+        if (unpacker.trySkipNil()) {
+            return null;
+        }
+        final ByteBuffer bb = readPacked(unpacker, 4);
+        final int[] result = new int[bb.remaining() / 4];
+        bb.asIntBuffer().get(result);
+        return result;
+    }
+
+    /**
+     * Writes a long array in packed form: a single raw, containing the values
+     * big-endian, 8 bytes each.
+     */
+    public static void writePackedLongArray(final Packer packer,
+            final long[] target) throws IOException {
+        if (target == null) {
+            packer.writeNil();
+            return;
+        }
+        final int n = target.length;
+        final int size = packedSize(n, 8);
+        packer.writeRawBegin(size);
+        final ByteBuffer bb = packedBuffer(size);
+        final LongBuffer view = bb.asLongBuffer();
+        int i = 0;
+        while (i < n) {
+            final int count = Math.min(n - i, view.capacity());
+            view.clear();
+            view.put(target, i, count);
+            writePackedChunk(packer, bb, count * 8);
+            i += count;
+        }
+        packer.writeRawEnd();
+    }
+
+    /** Reads a long array in packed form. */
+    public static long[] readPackedLongArray(final Unpacker unpacker)
+            throws IOException {
+        if (unpacker.trySkipNil()) {
+            return null;
+        }
+        final ByteBuffer bb = readPacked(unpacker, 8);
+        final long[] result = new long[bb.remaining() / 8];
+        bb.asLongBuffer().get(result);
+        return result;
+    }
+
+    /**
+     * Writes a float array in packed form: a single raw, containing the values
+     * big-endian, 4 bytes each.
+     */
+    public static void writePackedFloatArray(final Packer packer,
+            final float[] target) throws IOException {
+        if (target == null) {
+            packer.writeNil();
+            return;
+        }
+        final int n = target.length;
+        final int size = packedSize(n, 4);
+        packer.writeRawBegin(size);
+        final ByteBuffer bb = packedBuffer(size);
+        final FloatBuffer view = bb.asFloatBuffer();
+        int i = 0;
+        while (i < n) {
+            final int count = Math.min(n - i, view.capacity());
+            view.clear();
+            view.put(target, i, count);
+            writePackedChunk(packer, bb, count * 4);
+            i += count;
+        }
+        packer.writeRawEnd();
+    }
+
+    /** Reads a float array in packed form. */
+    public static float[] readPackedFloatArray(final Unpacker unpacker)
+            throws IOException {
+        if (unpacker.trySkipNil()) {
+            return null;
+        }
+        final ByteBuffer bb = readPacked(unpacker, 4);
+        final float[] result = new float[bb.remaining() / 4];
+        bb.asFloatBuffer().get(result);
+        return result;
+    }
+
+    /**
+     * Writes a double array in packed form: a single raw, containing the values
+     * big-endian, 8 bytes each.
+     */
+    public static void writePackedDoubleArray(final Packer packer,
+            final double[] target) throws IOException {
+        if (target == null) {
+            packer.writeNil();
+            return;
+        }
+        final int n = target.length;
+        final int size = packedSize(n, 8);
+        packer.writeRawBegin(size);
+        final ByteBuffer bb = packedBuffer(size);
+        final DoubleBuffer view = bb.asDoubleBuffer();
+        int i = 0;
+        while (i < n) {
+            final int count = Math.min(n - i, view.capacity());
+            view.clear();
+            view.put(target, i, count);
+            writePackedChunk(packer, bb, count * 8);
+            i += count;
+        }
+        packer.writeRawEnd();
+    }
+
+    /** Reads a double array in packed form. */
+    public static double[] readPackedDoubleArray(final Unpacker unpacker)
+            throws IOException {
+        if (unpacker.trySkipNil()) {
+            return null;
+        }
+        final ByteBuffer bb = readPacked(unpacker, 8);
+        final double[] result = new double[bb.remaining() / 8];
+        bb.asDoubleBuffer().get(result);
+        return result;
+    }
 }
@@ -44,6 +44,13 @@ public interface ObjectPacker {
     /** Returns the underlying packer. */
     Packer packer();
 
+    /**
+     * Starts a new message, in a SESSION stream. If resetTracking is true,
+     * the objects written so far are forgotten, and will be written again,
+     * if needed.
+     */
+    ObjectPacker startMessage(final boolean resetTracking) throws IOException;
+
     /** Writes a Boolean. */
     ObjectPacker writeObject(final Boolean o) throws IOException;
 
@@ -44,6 +44,13 @@ public interface ObjectUnpacker extends Closeable {
     /** Returns the underlying unpacker. */
     Unpacker unpacker();
 
+    /**
+     * Starts reading the next message, in a SESSION stream. Returns true if
+     * the object tracking was reset, in which case postDeser() is called on
+     * the objects read so far, and they are forgotten.
+     */
+    boolean startMessage() throws IOException;
+
     /** Reads any Object. */
     Object readObject() throws IOException;
 
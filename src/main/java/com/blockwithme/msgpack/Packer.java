@@ -147,6 +147,30 @@ public interface Packer extends Closeable, Flushable, DataOutput {
     /** Writes an raw end. */
     void writeRawEnd() throws IOException;
 
+    /**
+     * Returns true, if arrays, maps and raws can be written without knowing
+     * their size, with writeArrayBegin(), writeMapBegin() and writeRawBegin().
+     */
+    boolean supportsUnknownSizes();
+
+    /**
+     * Writes an array begin of unknown size. The size is written by
+     * writeArrayEnd(). Only if supportsUnknownSizes().
+     */
+    void writeArrayBegin() throws IOException;
+
+    /**
+     * Writes a map begin of unknown size. The size is written by
+     * writeMapEnd(). Only if supportsUnknownSizes().
+     */
+    void writeMapBegin() throws IOException;
+
+    /**
+     * Writes a raw begin of unknown size. The size is written by
+     * writeRawEnd(). Only if supportsUnknownSizes().
+     */
+    void writeRawBegin() throws IOException;
+
     /**
      * Returns the underlying DataOutput: use with extreme care!
      *
@@ -26,6 +26,8 @@ import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.util.Date;
 
+import com.blockwithme.msgpack.impl.ByteArraySlice;
+
 /**
  * Standard deserializer, implementing the core Message-Pack protocol.
  *
@@ -85,6 +87,17 @@ public interface Unpacker extends Closeable, DataInput {
     /** Reads a ByteBuffer. */
     ByteBuffer readByteBuffer() throws IOException;
 
+    /** Reads a byte array slice. */
+    ByteArraySlice readByteArraySlice() throws IOException;
+
+    /**
+     * Returns true, if readByteBuffer(), readByteArraySlice() and
+     * readPartialByteBuffer() return views of the input, instead of copies.
+     * Those views must then be treated as read-only, and are only valid as
+     * long as the input itself is.
+     */
+    boolean isZeroCopy();
+
     /** Reads an index written with Packer.writeIndex(int). */
     int readIndex() throws IOException;
 
@@ -106,6 +119,30 @@ public interface Unpacker extends Closeable, DataInput {
     /** Reads an array begin. */
     int readArrayBegin() throws IOException;
 
+    /**
+     * Reads up to len ints of the current array into dst, starting at off.
+     * Returns the number of ints read, which is less then len only at the
+     * end of the array.
+     */
+    int readInts(final int[] dst, final int off, final int len)
+            throws IOException;
+
+    /**
+     * Reads up to len longs of the current array into dst, starting at off.
+     * Returns the number of longs read, which is less then len only at the
+     * end of the array.
+     */
+    int readLongs(final long[] dst, final int off, final int len)
+            throws IOException;
+
+    /**
+     * Reads up to len doubles of the current array into dst, starting at off.
+     * Returns the number of doubles read, which is less then len only at the
+     * end of the array.
+     */
+    int readDoubles(final double[] dst, final int off, final int len)
+            throws IOException;
+
     /** Reads an array end. */
     void readArrayEnd(final boolean check) throws IOException;
 
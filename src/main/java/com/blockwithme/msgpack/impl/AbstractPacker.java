@@ -261,6 +261,26 @@ public abstract class AbstractPacker implements Packer {
         writeByte((byte) o);
     }
 
+    @Override
+    public boolean supportsUnknownSizes() {
+        return false;
+    }
+
+    @Override
+    public void writeArrayBegin() throws IOException {
+        throw new UnsupportedOperationException("Unknown sizes not supported");
+    }
+
+    @Override
+    public void writeMapBegin() throws IOException {
+        throw new UnsupportedOperationException("Unknown sizes not supported");
+    }
+
+    @Override
+    public void writeRawBegin() throws IOException {
+        throw new UnsupportedOperationException("Unknown sizes not supported");
+    }
+
     @Override
     public void close() throws IOException {
     }
@@ -55,6 +55,18 @@ public abstract class AbstractUnpacker implements Unpacker {
         return ByteBuffer.wrap(readByteArray());
     }
 
+    @Override
+    public ByteArraySlice readByteArraySlice() throws IOException {
+        final byte[] bytes = readByteArray();
+        return new ByteArraySlice(bytes, 0, bytes.length);
+    }
+
+    /** Returns false; raws are copies by default. */
+    @Override
+    public boolean isZeroCopy() {
+        return false;
+    }
+
     @Override
     public void readArrayEnd() throws IOException {
         readArrayEnd(false);
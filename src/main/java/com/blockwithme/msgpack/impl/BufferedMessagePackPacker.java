@@ -0,0 +1,652 @@
+/*
+ * Copyright (C) 2013 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.msgpack.impl;
+
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A MessagePackPacker that encodes everything in an internal byte[], and
+ * only passes the bytes on to the underlying DataOutput in large blocks.
+ *
+ * Every value costs at most one capacity check, instead of one (virtual)
+ * DataOutput call per header byte and payload. The flip side is that the
+ * output is only complete after flush() or close() was called.
+ *
+ * Arrays, maps and raws can also be written without knowing their size up
+ * front, with writeArrayBegin(), writeMapBegin() and writeRawBegin(). A
+ * fixed-width (32-bit) header is reserved, and patched when the container is
+ * ended. The buffer then grows as needed, since the bytes from the outermost
+ * open header on can only be passed on once it was patched.
+ *
+ * @author monster
+ */
+public class BufferedMessagePackPacker extends MessagePackPacker {
+
+    /** The default buffer size. */
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /** The minimum buffer size; must fit any header. */
+    private static final int MIN_BUFFER_SIZE = 16;
+
+    /** The buffer. */
+    private byte[] buf;
+
+    /** The current write position in the buffer. */
+    private int pos;
+
+    /** The buffer positions of the headers of the open containers. */
+    private int[] openHeaders = new int[8];
+
+    /** The stack depths of the open containers. */
+    private int[] openDepths = new int[8];
+
+    /** The number of open containers. */
+    private int openCount;
+
+    /** The DataOutput/OutputStream used within raw writes. */
+    private final BufferOutput bufferOutput = new BufferOutput();
+
+    /**
+     * DataOutput/OutputStream view of the buffer, returned by dataOutput()
+     * and outputStream(), so that raw writes are buffered too.
+     */
+    private final class BufferOutput extends OutputStream implements
+            DataOutput {
+
+        @Override
+        public void write(final int b) throws IOException {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        @Override
+        public void write(final byte[] b) throws IOException {
+            put(b, 0, b.length);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+                throws IOException {
+            put(b, off, len);
+        }
+
+        @Override
+        public void writeBoolean(final boolean v) throws IOException {
+            write(v ? 1 : 0);
+        }
+
+        @Override
+        public void writeByte(final int v) throws IOException {
+            write(v);
+        }
+
+        @Override
+        public void writeShort(final int v) throws IOException {
+            ensure(2);
+            pos = put16(buf, pos, v);
+        }
+
+        @Override
+        public void writeChar(final int v) throws IOException {
+            ensure(2);
+            pos = put16(buf, pos, v);
+        }
+
+        @Override
+        public void writeInt(final int v) throws IOException {
+            ensure(4);
+            pos = put32(buf, pos, v);
+        }
+
+        @Override
+        public void writeLong(final long v) throws IOException {
+            ensure(8);
+            pos = put64(buf, pos, v);
+        }
+
+        @Override
+        public void writeFloat(final float v) throws IOException {
+            writeInt(Float.floatToRawIntBits(v));
+        }
+
+        @Override
+        public void writeDouble(final double v) throws IOException {
+            writeLong(Double.doubleToRawLongBits(v));
+        }
+
+        @Override
+        public void writeBytes(final String s) throws IOException {
+            final int len = s.length();
+            for (int i = 0; i < len; i++) {
+                write(s.charAt(i));
+            }
+        }
+
+        @Override
+        public void writeChars(final String s) throws IOException {
+            final int len = s.length();
+            for (int i = 0; i < len; i++) {
+                writeChar(s.charAt(i));
+            }
+        }
+
+        @Override
+        public void writeUTF(final String s) throws IOException {
+            // Rarely used within a raw; not worth a copy of the encoder.
+            new DataOutputStream(this).writeUTF(s);
+        }
+
+        @Override
+        public void flush() {
+            // NOP: only the packer flushes.
+        }
+
+        @Override
+        public void close() {
+            // NOP: only the packer closes.
+        }
+    }
+
+    /** Creates a BufferedMessagePackPacker with the default buffer size. */
+    public BufferedMessagePackPacker(final DataOutput out) {
+        this(out, DEFAULT_BUFFER_SIZE);
+    }
+
+    /** Creates a BufferedMessagePackPacker with the given buffer size. */
+    public BufferedMessagePackPacker(final DataOutput out, final int bufferSize) {
+        super(out);
+        buf = new byte[Math.max(bufferSize, MIN_BUFFER_SIZE)];
+    }
+
+    /** Writes 2 bytes, big-endian, and returns the new position. */
+    private static int put16(final byte[] b, final int p, final int v) {
+        b[p] = (byte) (v >> 8);
+        b[p + 1] = (byte) v;
+        return p + 2;
+    }
+
+    /** Writes 4 bytes, big-endian, and returns the new position. */
+    private static int put32(final byte[] b, final int p, final int v) {
+        b[p] = (byte) (v >> 24);
+        b[p + 1] = (byte) (v >> 16);
+        b[p + 2] = (byte) (v >> 8);
+        b[p + 3] = (byte) v;
+        return p + 4;
+    }
+
+    /** Writes 8 bytes, big-endian, and returns the new position. */
+    private static int put64(final byte[] b, final int p, final long v) {
+        put32(b, p, (int) (v >> 32));
+        return put32(b, p + 4, (int) v);
+    }
+
+    /** Makes sure that n bytes can be written in the buffer. */
+    private void ensure(final int n) throws IOException {
+        if (pos + n > buf.length) {
+            spill();
+            if (pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(pos + n, 2 * buf.length));
+            }
+        }
+    }
+
+    /**
+     * Passes the buffered bytes on to the underlying DataOutput, up to the
+     * header of the outermost open container, if any.
+     */
+    private void spill() throws IOException {
+        final int end = (openCount == 0) ? pos : openHeaders[0];
+        if (end > 0) {
+            out.write(buf, 0, end);
+            System.arraycopy(buf, end, buf, 0, pos - end);
+            pos -= end;
+            for (int i = 0; i < openCount; i++) {
+                openHeaders[i] -= end;
+            }
+        }
+    }
+
+    /** Writes a byte[] slice; big slices bypass the buffer. */
+    private void put(final byte[] b, final int off, final int len)
+            throws IOException {
+        if (pos + len <= buf.length) {
+            System.arraycopy(b, off, buf, pos, len);
+            pos += len;
+        } else {
+            spill();
+            if ((len >= buf.length) && (openCount == 0)) {
+                out.write(b, off, len);
+            } else {
+                ensure(len);
+                System.arraycopy(b, off, buf, pos, len);
+                pos += len;
+            }
+        }
+    }
+
+    /** Returns the number of bytes currently buffered. */
+    public int buffered() {
+        return pos;
+    }
+
+    @Override
+    public void writeByte(final byte d) throws IOException {
+        ensure(2);
+        if (d < -(1 << 5)) {
+            buf[pos++] = (byte) 0xd0;
+        }
+        buf[pos++] = d;
+        stack.reduceCount();
+    }
+
+    @Override
+    public void writeShort(final short d) throws IOException {
+        writeInt(d);
+    }
+
+    @Override
+    public void writeChar(final char d) throws IOException {
+        writeInt(d);
+    }
+
+    @Override
+    public void writeInt(final int d) throws IOException {
+        ensure(5);
+        final byte[] b = buf;
+        int p = pos;
+        if (d < -(1 << 5)) {
+            if (d < -(1 << 15)) {
+                // signed 32
+                b[p++] = (byte) 0xd2;
+                p = put32(b, p, d);
+            } else if (d < -(1 << 7)) {
+                // signed 16
+                b[p++] = (byte) 0xd1;
+                p = put16(b, p, d);
+            } else {
+                // signed 8
+                b[p++] = (byte) 0xd0;
+                b[p++] = (byte) d;
+            }
+        } else if (d < (1 << 7)) {
+            // fixnum
+            b[p++] = (byte) d;
+        } else {
+            if (d < (1 << 8)) {
+                // unsigned 8
+                b[p++] = (byte) 0xcc;
+                b[p++] = (byte) d;
+            } else if (d < (1 << 16)) {
+                // unsigned 16
+                b[p++] = (byte) 0xcd;
+                p = put16(b, p, d);
+            } else {
+                // unsigned 32
+                b[p++] = (byte) 0xce;
+                p = put32(b, p, d);
+            }
+        }
+        pos = p;
+        stack.reduceCount();
+    }
+
+    @Override
+    public void writeLong(final long d) throws IOException {
+        if ((d >= Integer.MIN_VALUE) && (d <= Integer.MAX_VALUE)) {
+            writeInt((int) d);
+            return;
+        }
+        ensure(9);
+        if (d < 0) {
+            // signed 64
+            buf[pos++] = (byte) 0xd3;
+        } else if (d < (1L << 32)) {
+            // unsigned 32
+            buf[pos++] = (byte) 0xce;
+            pos = put32(buf, pos, (int) d);
+            stack.reduceCount();
+            return;
+        } else {
+            // unsigned 64
+            buf[pos++] = (byte) 0xcf;
+        }
+        pos = put64(buf, pos, d);
+        stack.reduceCount();
+    }
+
+    @Override
+    protected void writeBigInteger(final BigInteger d,
+            final boolean countAaValue) throws IOException {
+        if (d.bitLength() <= 63) {
+            writeLong(d.longValue());
+            if (countAaValue) {
+                stack.reduceCount();
+            }
+        } else if (d.bitLength() == 64 && d.signum() == 1) {
+            // unsigned 64
+            ensure(9);
+            buf[pos++] = (byte) 0xcf;
+            pos = put64(buf, pos, d.longValue());
+            if (countAaValue) {
+                stack.reduceCount();
+            }
+        } else {
+            throw new IOException(
+                    "MessagePack can't serialize BigInteger larger than (2^64)-1");
+        }
+    }
+
+    @Override
+    public void writeFloat(final float d) throws IOException {
+        ensure(5);
+        buf[pos++] = (byte) 0xca;
+        pos = put32(buf, pos, Float.floatToRawIntBits(d));
+        stack.reduceCount();
+    }
+
+    @Override
+    public void writeDouble(final double d) throws IOException {
+        ensure(9);
+        buf[pos++] = (byte) 0xcb;
+        pos = put64(buf, pos, Double.doubleToRawLongBits(d));
+        stack.reduceCount();
+    }
+
+    @Override
+    public void writeBoolean(final boolean d) throws IOException {
+        ensure(1);
+        buf[pos++] = d ? (byte) 0xc3 : (byte) 0xc2;
+        stack.reduceCount();
+    }
+
+    @Override
+    public void writeNil() throws IOException {
+        ensure(1);
+        buf[pos++] = (byte) 0xc0;
+        stack.reduceCount();
+    }
+
+    @Override
+    protected void writeByteArray(final byte[] b, final int off, final int len)
+            throws IOException {
+        writeRawBegin(len);
+        put(b, off, len);
+        rawWritten(len);
+        writeRawEnd();
+    }
+
+    /** Encodes the String directly in the buffer. */
+    @Override
+    protected void writeString(final String s) throws IOException {
+        final int len = UTF8.length(s);
+        writeRawBegin(len);
+        final int n = s.length();
+        if (len <= buf.length - pos) {
+            pos = UTF8.encode(s, 0, n, buf, pos);
+        } else {
+            // Encode in chunks, never splitting a surrogate pair.
+            int i = 0;
+            while (i < n) {
+                if (buf.length - pos < 2 * UTF8.MAX_BYTES_PER_CHAR) {
+                    ensure(2 * UTF8.MAX_BYTES_PER_CHAR);
+                }
+                int end = Math.min(n, i + (buf.length - pos)
+                        / UTF8.MAX_BYTES_PER_CHAR);
+                if ((end < n) && Character.isHighSurrogate(s.charAt(end - 1))) {
+                    end--;
+                }
+                pos = UTF8.encode(s, i, end, buf, pos);
+                i = end;
+            }
+        }
+        rawWritten(len);
+        writeRawEnd();
+    }
+
+    @Override
+    public void writePartial(final ByteBuffer bb) throws IOException {
+        checkInRawWrite();
+        final int len = bb.remaining();
+        if (bb.hasArray()) {
+            put(bb.array(), bb.arrayOffset() + bb.position(), len);
+        } else {
+            final int p = bb.position();
+            int done = 0;
+            while (done < len) {
+                if (pos == buf.length) {
+                    ensure(1);
+                }
+                final int chunk = Math.min(len - done, buf.length - pos);
+                bb.get(buf, pos, chunk);
+                pos += chunk;
+                done += chunk;
+            }
+            bb.position(p);
+        }
+        rawWritten(len);
+    }
+
+    @Override
+    public void writeArrayBegin(final int size) throws IOException {
+        ensure(5);
+        if (size < 16) {
+            // FixArray
+            buf[pos++] = (byte) (0x90 | size);
+        } else if (size < 65536) {
+            buf[pos++] = (byte) 0xdc;
+            pos = put16(buf, pos, size);
+        } else {
+            buf[pos++] = (byte) 0xdd;
+            pos = put32(buf, pos, size);
+        }
+        stack.reduceCount();
+        stack.pushArray(size);
+    }
+
+    @Override
+    public void writeMapBegin(final int size) throws IOException {
+        ensure(5);
+        if (size < 16) {
+            // FixMap
+            buf[pos++] = (byte) (0x80 | size);
+        } else if (size < 65536) {
+            buf[pos++] = (byte) 0xde;
+            pos = put16(buf, pos, size);
+        } else {
+            buf[pos++] = (byte) 0xdf;
+            pos = put32(buf, pos, size);
+        }
+        stack.reduceCount();
+        stack.pushMap(size);
+    }
+
+    @Override
+    public void writeRawBegin(final int len) throws IOException {
+        if (inRawWrite) {
+            throw new IOException("Last raw write not terminated!");
+        }
+        ensure(5);
+        if (len < 32) {
+            buf[pos++] = (byte) (0xa0 | len);
+        } else if (len < 65536) {
+            buf[pos++] = (byte) 0xda;
+            pos = put16(buf, pos, len);
+        } else {
+            buf[pos++] = (byte) 0xdb;
+            pos = put32(buf, pos, len);
+        }
+        rawToWrite = len;
+        stack.reduceCount();
+        stack.pushRaw();
+        inRawWrite = true;
+    }
+
+    /** Remembers the header position of a new open container. */
+    private void open(final int header) {
+        if (openCount == openHeaders.length) {
+            openHeaders = Arrays.copyOf(openHeaders, 2 * openCount);
+            openDepths = Arrays.copyOf(openDepths, 2 * openCount);
+        }
+        openHeaders[openCount] = header;
+        openDepths[openCount++] = stack.getDepth();
+    }
+
+    /** Is the top of the stack an open container? */
+    private boolean topIsOpen() {
+        return (openCount > 0)
+                && (openDepths[openCount - 1] == stack.getDepth());
+    }
+
+    /** Patches the header of the innermost open container, and closes it. */
+    private void patch(final int size) {
+        put32(buf, openHeaders[--openCount] + 1, size);
+    }
+
+    @Override
+    public boolean supportsUnknownSizes() {
+        return true;
+    }
+
+    /**
+     * Begins an array of unknown size. The size is written by
+     * writeArrayEnd(), which must not add any nil.
+     */
+    @Override
+    public void writeArrayBegin() throws IOException {
+        ensure(5);
+        final int header = pos;
+        buf[pos++] = (byte) 0xdd;
+        pos += 4;
+        stack.reduceCount();
+        stack.pushArray(Integer.MAX_VALUE);
+        open(header);
+    }
+
+    /**
+     * Begins a map of unknown size. The size is written by writeMapEnd(),
+     * which must not add any nil.
+     */
+    @Override
+    public void writeMapBegin() throws IOException {
+        ensure(5);
+        final int header = pos;
+        buf[pos++] = (byte) 0xdf;
+        pos += 4;
+        stack.reduceCount();
+        stack.pushMap(Integer.MAX_VALUE / 2);
+        open(header);
+    }
+
+    /**
+     * Begins a raw of unknown size. The raw bytes must be written through
+     * dataOutput(), outputStream() or writePartial(); rawWritten() is then
+     * optional. The size is written by writeRawEnd().
+     */
+    @Override
+    public void writeRawBegin() throws IOException {
+        writeRawBegin(Integer.MAX_VALUE);
+        // Replace the 32-bit header of writeRawBegin(int)
+        open(pos - 5);
+    }
+
+    @Override
+    public void writeArrayEnd(final boolean check) throws IOException {
+        if (topIsOpen() && stack.topIsArray()) {
+            patch(Integer.MAX_VALUE - stack.getTopCount());
+            stack.pop();
+        } else {
+            super.writeArrayEnd(check);
+        }
+    }
+
+    @Override
+    public void writeMapEnd(final boolean check) throws IOException {
+        if (topIsOpen() && stack.topIsMap()) {
+            final int values = (Integer.MAX_VALUE / 2) * 2
+                    - stack.getTopCount();
+            if (values % 2 != 0) {
+                throw new IOException(
+                        "writeMapEnd() is called but the last value is missing");
+            }
+            patch(values / 2);
+            stack.pop();
+        } else {
+            super.writeMapEnd(check);
+        }
+    }
+
+    @Override
+    public void writeRawEnd() throws IOException {
+        if (topIsOpen() && stack.topIsRaw()) {
+            checkInRawWrite();
+            patch(pos - openHeaders[openCount - 1] - 5);
+            rawToWrite = 0;
+        }
+        super.writeRawEnd();
+    }
+
+    /**
+     * Returns a DataOutput writing in the internal buffer: use with extreme
+     * care! The usage restrictions of Packer.dataOutput() apply.
+     */
+    @Override
+    public DataOutput dataOutput() throws IOException {
+        checkInRawWrite();
+        return bufferOutput;
+    }
+
+    /**
+     * Returns an OutputStream writing in the internal buffer: use with extreme
+     * care! The usage restrictions of Packer.dataOutput() apply.
+     */
+    @Override
+    public OutputStream outputStream() throws IOException {
+        checkInRawWrite();
+        return bufferOutput;
+    }
+
+    /** Also discards the bytes not flushed yet. */
+    @Override
+    public void reset() {
+        super.reset();
+        pos = 0;
+        openCount = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        spill();
+        if (out instanceof Flushable) {
+            ((Flushable) out).flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (openCount > 0) {
+            throw new IOException(openCount + " containers of unknown size not ended");
+        }
+        spill();
+        super.close();
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2013 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.msgpack.impl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+import com.blockwithme.msgpack.impl.accept.Accept;
+
+/**
+ * A MessagePackUnpacker that decodes directly from a byte[] or a (heap or
+ * direct) ByteBuffer, which is already fully in memory.
+ *
+ * It keeps its own position index, and never goes through a DataInput.
+ *
+ * In zero-copy mode, raws are not copied, but returned as read-only views of
+ * the input (or as ByteArraySlice pointing into the input array). The input
+ * must then not be modified or reused while those views are in use.
+ *
+ * @author monster
+ */
+public class ByteBufferMessagePackUnpacker extends MessagePackUnpacker {
+
+    /** The input. Always big-endian, and independent of the caller buffer. */
+    protected ByteBuffer buf;
+
+    /** The current read position in buf. */
+    protected int pos;
+
+    /** The end of the input in buf. */
+    protected int limit;
+
+    /** Reusable view of buf, positioned over the current raw. */
+    private ByteBuffer view;
+
+    /** Are raws returned as views of the input? */
+    private boolean zeroCopy;
+
+    /** Creates an unpacker over the whole byte array. */
+    public ByteBufferMessagePackUnpacker(final byte[] bytes) {
+        this(bytes, 0, bytes.length);
+    }
+
+    /** Creates an unpacker over a byte array slice. */
+    public ByteBufferMessagePackUnpacker(final byte[] bytes, final int off,
+            final int len) {
+        this(ByteBuffer.wrap(bytes, off, len));
+    }
+
+    /**
+     * Creates an unpacker over the remaining bytes of a ByteBuffer. The
+     * position of the ByteBuffer itself is not modified.
+     */
+    public ByteBufferMessagePackUnpacker(final ByteBuffer bb) {
+        reset(bb);
+    }
+
+    /**
+     * Restarts the unpacker over the remaining bytes of a ByteBuffer. The
+     * position of the ByteBuffer itself is not modified.
+     */
+    public void reset(final ByteBuffer bb) {
+        // duplicate() is always big-endian
+        buf = Objects.requireNonNull(bb).duplicate();
+        pos = buf.position();
+        limit = buf.limit();
+        view = buf.duplicate();
+        reset();
+    }
+
+    /**
+     * Restarts the unpacker over a byte array slice. If it is the same array
+     * as the current input, no new ByteBuffer is created.
+     */
+    public void reset(final byte[] bytes, final int off, final int len) {
+        if (!buf.hasArray() || (buf.array() != bytes)
+                || (buf.arrayOffset() != 0)) {
+            reset(ByteBuffer.wrap(bytes, off, len));
+        } else {
+            if ((off < 0) || (len < 0) || (off + len > bytes.length)) {
+                throw new IndexOutOfBoundsException("off=" + off + " len="
+                        + len + " length=" + bytes.length);
+            }
+            buf.clear();
+            view.clear();
+            pos = off;
+            limit = off + len;
+            reset();
+        }
+    }
+
+    /** Enables or disables the zero-copy mode. */
+    public void setZeroCopy(final boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
+
+    /** Returns true in zero-copy mode. */
+    @Override
+    public boolean isZeroCopy() {
+        return zeroCopy;
+    }
+
+    /** Returns the current read position, in the original ByteBuffer. */
+    public int position() {
+        return pos;
+    }
+
+    /** Returns the number of input bytes not read yet. */
+    public int remaining() {
+        return limit - pos;
+    }
+
+    /** Fails if less then n bytes are available. */
+    private void require(final int n) throws IOException {
+        if (pos + n > limit) {
+            throw new EOFException();
+        }
+    }
+
+    @Override
+    protected final byte inByte() throws IOException {
+        require(1);
+        return buf.get(pos++);
+    }
+
+    @Override
+    protected final short inShort() throws IOException {
+        require(2);
+        final short result = buf.getShort(pos);
+        pos += 2;
+        return result;
+    }
+
+    @Override
+    protected final int inInt() throws IOException {
+        require(4);
+        final int result = buf.getInt(pos);
+        pos += 4;
+        return result;
+    }
+
+    @Override
+    protected final long inLong() throws IOException {
+        require(8);
+        final long result = buf.getLong(pos);
+        pos += 8;
+        return result;
+    }
+
+    @Override
+    protected final float inFloat() throws IOException {
+        require(4);
+        final float result = buf.getFloat(pos);
+        pos += 4;
+        return result;
+    }
+
+    @Override
+    protected final double inDouble() throws IOException {
+        require(8);
+        final double result = buf.getDouble(pos);
+        pos += 8;
+        return result;
+    }
+
+    @Override
+    protected final void inFully(final byte[] b, final int off, final int len)
+            throws IOException {
+        require(len);
+        if (buf.hasArray()) {
+            System.arraycopy(buf.array(), buf.arrayOffset() + pos, b, off, len);
+        } else {
+            buf.position(pos);
+            buf.get(b, off, len);
+        }
+        pos += len;
+    }
+
+    @Override
+    protected final void inSkip(final int len) throws IOException {
+        require(len);
+        pos += len;
+    }
+
+    /** Passes a view of the input to the Accept, instead of a new byte[]. */
+    @Override
+    protected final void readRawBody(final Accept a, final int size)
+            throws IOException {
+        require(size);
+        // limit first, so that position is always valid
+        view.limit(pos + size);
+        view.position(pos);
+        pos += size;
+        a.refer(view, zeroCopy);
+    }
+}
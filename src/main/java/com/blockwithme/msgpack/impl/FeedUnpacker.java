@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2013 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.msgpack.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.blockwithme.msgpack.impl.accept.Accept;
+import com.blockwithme.msgpack.impl.accept.SkipAccept;
+
+/**
+ * A push-style, non-blocking, MessagePack unpacker. Input is fed in chunks of
+ * any size, and each value is passed to an Accept as soon as it is complete.
+ * When a chunk ends in the middle of a value (header, number or raw), the
+ * state is kept, and parsing resumes with the next chunk.
+ *
+ * feed() returns true every time a top-level value was completed. With
+ * setKeepBytes(true), value() then returns the encoded bytes of that value,
+ * which can be decoded with a ByteBufferMessagePackUnpacker (and an
+ * ObjectUnpacker) without ever blocking.
+ *
+ * @author monster
+ */
+public class FeedUnpacker {
+
+    /** Used when feed() gets no Accept. Raws are then not materialized. */
+    private static final SkipAccept SKIP = new SkipAccept();
+
+    /** The container nesting. */
+    private final UnpackerStack stack = new UnpackerStack();
+
+    /** The head byte of the current value, or -1 if none. */
+    private int head = -1;
+
+    /** The number of bytes still needed, for the current number or length. */
+    private int need;
+
+    /** The number or length bytes read so far. */
+    private long acc;
+
+    /** The current raw, if materialized. */
+    private byte[] raw;
+
+    /** The number of bytes of the current raw read so far. */
+    private int rawFilled;
+
+    /** The number of bytes of the current raw still to read. */
+    private int rawRemaining;
+
+    /** Are the bytes of the current top-level value kept? */
+    private boolean keepBytes;
+
+    /** The bytes of the current top-level value, if kept. */
+    private byte[] kept = new byte[0];
+
+    /** The number of bytes in kept. */
+    private int keptLength;
+
+    /** Was a top-level value completed by the last feed()? */
+    private boolean complete;
+
+    private int rawSizeLimit = 134217728;
+
+    private int arraySizeLimit = 4194304;
+
+    private int mapSizeLimit = 2097152;
+
+    /** Keeps, or not, the bytes of each top-level value, for value(). */
+    public void setKeepBytes(final boolean keepBytes) {
+        this.keepBytes = keepBytes;
+    }
+
+    public void setRawSizeLimit(final int size) {
+        rawSizeLimit = (size < 32) ? 32 : size;
+    }
+
+    public void setArraySizeLimit(final int size) {
+        arraySizeLimit = (size < 16) ? 16 : size;
+    }
+
+    public void setMapSizeLimit(final int size) {
+        mapSizeLimit = (size < 16) ? 16 : size;
+    }
+
+    /** Returns the current container nesting depth. */
+    public int getDepth() {
+        return stack.getDepth();
+    }
+
+    /** Returns true if no partial value is pending. */
+    public boolean isIdle() {
+        return (stack.getDepth() == 0) && (head == -1) && (rawRemaining == 0);
+    }
+
+    /**
+     * Returns the bytes of the top-level value completed by the last feed(),
+     * if keepBytes is set. Only valid until the next feed().
+     */
+    public ByteBuffer value() {
+        if (!complete || !keepBytes) {
+            throw new IllegalStateException("No complete value kept");
+        }
+        return ByteBuffer.wrap(kept, 0, keptLength);
+    }
+
+    /** Drops any partial value. */
+    public void reset() {
+        stack.clear();
+        head = -1;
+        need = 0;
+        raw = null;
+        rawRemaining = 0;
+        keptLength = 0;
+        complete = false;
+    }
+
+    /**
+     * Consumes bytes from src, passing each complete value to a (null to
+     * skip them), until a top-level value is complete, in which case it
+     * returns true, or until src is empty, in which case it returns false,
+     * meaning that more data is needed. Unconsumed bytes are left in src.
+     */
+    public boolean feed(final ByteBuffer src, final Accept a)
+            throws IOException {
+        if (complete) {
+            complete = false;
+            keptLength = 0;
+        }
+        final Accept accept = (a == null) ? SKIP : a;
+        final int start = src.position();
+        try {
+            while (src.hasRemaining()) {
+                if (rawRemaining > 0) {
+                    if (feedRaw(src, accept)) {
+                        return complete = true;
+                    }
+                } else if (need > 0) {
+                    acc = (acc << 8) | (src.get() & 0xFF);
+                    if ((--need == 0) && completeHead(accept)) {
+                        return complete = true;
+                    }
+                } else if (feedHead(src.get() & 0xFF, accept)) {
+                    return complete = true;
+                }
+            }
+            return false;
+        } finally {
+            if (keepBytes) {
+                keep(src, start);
+            }
+        }
+    }
+
+    /** Appends the bytes consumed from src, since start, to kept. */
+    private void keep(final ByteBuffer src, final int start) {
+        final int len = src.position() - start;
+        if (keptLength + len > kept.length) {
+            kept = Arrays.copyOf(kept,
+                    Math.max(keptLength + len, 2 * kept.length));
+        }
+        if (src.hasArray()) {
+            System.arraycopy(src.array(), src.arrayOffset() + start, kept,
+                    keptLength, len);
+        } else {
+            final ByteBuffer dup = src.duplicate();
+            dup.position(start);
+            dup.get(kept, keptLength, len);
+        }
+        keptLength += len;
+    }
+
+    /** Consumes raw bytes. Returns true if a top-level value is complete. */
+    private boolean feedRaw(final ByteBuffer src, final Accept a)
+            throws IOException {
+        final int n = Math.min(rawRemaining, src.remaining());
+        if (raw != null) {
+            src.get(raw, rawFilled, n);
+            rawFilled += n;
+        } else {
+            src.position(src.position() + n);
+        }
+        rawRemaining -= n;
+        if (rawRemaining > 0) {
+            return false;
+        }
+        if (raw != null) {
+            final byte[] r = raw;
+            raw = null;
+            a.acceptRaw(r);
+        }
+        return valueDone();
+    }
+
+    /** Processes a head byte. Returns true if a top-level value is complete. */
+    private boolean feedHead(final int b, final Accept a) throws IOException {
+        switch (HeadBytes.KIND[b]) {
+        case HeadBytes.FIXNUM:
+            a.acceptInteger((int) (byte) b);
+            return valueDone();
+        case HeadBytes.FIXRAW:
+            return startRaw(HeadBytes.INLINE[b], a);
+        case HeadBytes.FIXARRAY:
+            return startArray(HeadBytes.INLINE[b], a);
+        case HeadBytes.FIXMAP:
+            return startMap(HeadBytes.INLINE[b], a);
+        case HeadBytes.CONSTANT:
+            if (b == 0xc0) {
+                a.acceptNil();
+            } else {
+                a.acceptBoolean(b == 0xc3);
+            }
+            return valueDone();
+        case HeadBytes.INVALID:
+            throw new IOException("Invalid byte: " + (byte) b);
+        default:
+            // Numbers, and sizes of raws, arrays and maps
+            need = HeadBytes.WIDTH[b];
+            head = b;
+            acc = 0;
+            return false;
+        }
+    }
+
+    /**
+     * Processes the number or length following the head byte. Returns true
+     * if a top-level value is complete.
+     */
+    private boolean completeHead(final Accept a) throws IOException {
+        final int b = head;
+        head = -1;
+        switch (b) {
+        case 0xca: // float
+            a.acceptFloat(Float.intBitsToFloat((int) acc));
+            break;
+        case 0xcb: // double
+            a.acceptDouble(Double.longBitsToDouble(acc));
+            break;
+        case 0xcc: // unsigned int 8
+            a.acceptUnsignedInteger((byte) acc);
+            break;
+        case 0xcd: // unsigned int 16
+            a.acceptUnsignedInteger((short) acc);
+            break;
+        case 0xce: // unsigned int 32
+            a.acceptUnsignedInteger((int) acc);
+            break;
+        case 0xcf: // unsigned int 64
+            a.acceptUnsignedInteger(acc);
+            break;
+        case 0xd0: // signed int 8
+            a.acceptInteger((byte) acc);
+            break;
+        case 0xd1: // signed int 16
+            a.acceptInteger((short) acc);
+            break;
+        case 0xd2: // signed int 32
+            a.acceptInteger((int) acc);
+            break;
+        case 0xd3: // signed int 64
+            a.acceptInteger(acc);
+            break;
+        case 0xda: // raw 16
+        case 0xdb: // raw 32
+            return startRaw(checkSize((int) acc, rawSizeLimit, "raw"), a);
+        case 0xdc: // array 16
+        case 0xdd: // array 32
+            return startArray(checkSize((int) acc, arraySizeLimit, "array"),
+                    a);
+        default: // map 16 and 32
+            return startMap(checkSize((int) acc, mapSizeLimit, "map"), a);
+        }
+        return valueDone();
+    }
+
+    /** Checks a size against its limit. */
+    private static int checkSize(final int size, final int limit,
+            final String what) throws IOException {
+        if ((size < 0) || (size >= limit)) {
+            throw new IOException("Size of " + what + " (" + (size & 0xFFFFFFFFL)
+                    + ") over limit at " + limit);
+        }
+        return size;
+    }
+
+    /** Starts a raw. Returns true if a top-level value is complete. */
+    private boolean startRaw(final int size, final Accept a)
+            throws IOException {
+        if (size == 0) {
+            a.acceptEmptyRaw();
+            return valueDone();
+        }
+        raw = (a == SKIP) ? null : new byte[size];
+        rawFilled = 0;
+        rawRemaining = size;
+        return false;
+    }
+
+    /** Starts an array. Returns true if a top-level value is complete. */
+    private boolean startArray(final int size, final Accept a)
+            throws IOException {
+        a.acceptArray(size);
+        if (size == 0) {
+            return valueDone();
+        }
+        checkDepth();
+        stack.pushArray(size);
+        return false;
+    }
+
+    /** Starts a map. Returns true if a top-level value is complete. */
+    private boolean startMap(final int size, final Accept a)
+            throws IOException {
+        a.acceptMap(size);
+        if (size == 0) {
+            return valueDone();
+        }
+        checkDepth();
+        stack.pushMap(size);
+        return false;
+    }
+
+    /** Fails if the stack is full. */
+    private void checkDepth() throws IOException {
+        if (stack.getDepth() + 1 >= UnpackerStack.MAX_STACK_SIZE) {
+            throw new IOException("Maximum nesting depth reached: "
+                    + stack.getDepth());
+        }
+    }
+
+    /**
+     * Called after a value was completed. Closes the completed containers,
+     * and returns true if the top-level value is complete.
+     */
+    private boolean valueDone() {
+        while (stack.getDepth() > 0) {
+            stack.reduceCount();
+            if (stack.getTopCount() > 0) {
+                return false;
+            }
+            stack.pop();
+        }
+        return true;
+    }
+}
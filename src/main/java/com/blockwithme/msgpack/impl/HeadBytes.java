@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2013 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.msgpack.impl;
+
+import com.blockwithme.msgpack.ValueType;
+
+/**
+ * Lookup tables classifying MessagePack head bytes, indexed by (b & 0xFF),
+ * so that the (un)packers do not need chains of mask tests.
+ *
+ * @author monster
+ */
+final class HeadBytes {
+
+    /** Kind: invalid head byte. */
+    static final byte INVALID = 0;
+
+    /** Kind: positive or negative fixnum; the head byte is the value. */
+    static final byte FIXNUM = 1;
+
+    /** Kind: raw with inline size. */
+    static final byte FIXRAW = 2;
+
+    /** Kind: array with inline size. */
+    static final byte FIXARRAY = 3;
+
+    /** Kind: map with inline size. */
+    static final byte FIXMAP = 4;
+
+    /** Kind: nil or boolean, without payload. */
+    static final byte CONSTANT = 5;
+
+    /** Kind: number with a payload of WIDTH bytes. */
+    static final byte NUMBER = 6;
+
+    /** Kind: raw, array or map, with a size of WIDTH bytes. */
+    static final byte SIZED = 7;
+
+    /** The kind of each head byte. */
+    static final byte[] KIND = new byte[256];
+
+    /** The value type of each head byte, or null if invalid. */
+    static final ValueType[] TYPE = new ValueType[256];
+
+    /** The inline size of the fix raws, arrays and maps. */
+    static final byte[] INLINE = new byte[256];
+
+    /** The number of bytes following the head byte, before any raw body. */
+    static final byte[] WIDTH = new byte[256];
+
+    static {
+        for (int b = 0; b < 0x80; b++) {
+            set(b, FIXNUM, ValueType.INTEGER, 0, 0);
+        }
+        for (int b = 0xe0; b < 0x100; b++) {
+            set(b, FIXNUM, ValueType.INTEGER, 0, 0);
+        }
+        for (int i = 0; i < 0x10; i++) {
+            set(0x80 | i, FIXMAP, ValueType.MAP, i, 0);
+            set(0x90 | i, FIXARRAY, ValueType.ARRAY, i, 0);
+        }
+        for (int i = 0; i < 0x20; i++) {
+            set(0xa0 | i, FIXRAW, ValueType.RAW, i, 0);
+        }
+        set(0xc0, CONSTANT, ValueType.NIL, 0, 0);
+        set(0xc2, CONSTANT, ValueType.BOOLEAN, 0, 0);
+        set(0xc3, CONSTANT, ValueType.BOOLEAN, 0, 0);
+        set(0xca, NUMBER, ValueType.FLOAT, 0, 4);
+        set(0xcb, NUMBER, ValueType.FLOAT, 0, 8);
+        set(0xcc, NUMBER, ValueType.INTEGER, 0, 1);
+        set(0xcd, NUMBER, ValueType.INTEGER, 0, 2);
+        set(0xce, NUMBER, ValueType.INTEGER, 0, 4);
+        set(0xcf, NUMBER, ValueType.INTEGER, 0, 8);
+        set(0xd0, NUMBER, ValueType.INTEGER, 0, 1);
+        set(0xd1, NUMBER, ValueType.INTEGER, 0, 2);
+        set(0xd2, NUMBER, ValueType.INTEGER, 0, 4);
+        set(0xd3, NUMBER, ValueType.INTEGER, 0, 8);
+        set(0xda, SIZED, ValueType.RAW, 0, 2);
+        set(0xdb, SIZED, ValueType.RAW, 0, 4);
+        set(0xdc, SIZED, ValueType.ARRAY, 0, 2);
+        set(0xdd, SIZED, ValueType.ARRAY, 0, 4);
+        set(0xde, SIZED, ValueType.MAP, 0, 2);
+        set(0xdf, SIZED, ValueType.MAP, 0, 4);
+    }
+
+    /** Sets the table entries of one head byte. */
+    private static void set(final int b, final byte kind, final ValueType type,
+            final int inline, final int width) {
+        KIND[b] = kind;
+        TYPE[b] = type;
+        INLINE[b] = (byte) inline;
+        WIDTH[b] = (byte) width;
+    }
+
+    /** No instance. */
+    private HeadBytes() {
+        // NOP
+    }
+}
@@ -22,7 +22,6 @@ import java.io.DataOutput;
 import java.io.Flushable;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.util.Objects;
@@ -37,16 +36,22 @@ import java.util.Objects;
  * @author monster
  */
 public class MessagePackPacker extends AbstractPacker {
+    /** Maximum size of the reusable String encoding buffer. */
+    private static final int MAX_STRING_BUFFER = 65536;
+
     protected final DataOutput out;
     protected final OutputStream outputStream;
 
     /** Amounts of raw bytes still to be written. */
-    private int rawToWrite;
+    protected int rawToWrite;
 
     /** True if we are in a raw write. */
-    private boolean inRawWrite;
+    protected boolean inRawWrite;
+
+    protected final PackerStack stack = new PackerStack();
 
-    private final PackerStack stack = new PackerStack();
+    /** Reusable buffer for encoding Strings. */
+    private byte[] stringBuffer = new byte[256];
 
     public MessagePackPacker(final DataOutput out) {
         this.out = Objects.requireNonNull(out);
@@ -310,14 +315,17 @@ public class MessagePackPacker extends AbstractPacker {
 
     @Override
     protected void writeString(final String s) throws IOException {
-        byte[] b;
-        try {
-            // TODO encoding error?
-            b = s.getBytes("UTF-8");
-        } catch (final UnsupportedEncodingException ex) {
-            throw new IOException(ex);
+        final int len = UTF8.length(s);
+        byte[] b = stringBuffer;
+        if (len > b.length) {
+            b = new byte[len];
+            // Do not keep huge buffers around
+            if (len <= MAX_STRING_BUFFER) {
+                stringBuffer = b;
+            }
         }
-        writeByteArray(b, 0, b.length);
+        UTF8.encode(s, 0, s.length(), b, 0);
+        writeByteArray(b, 0, len);
     }
 
     @Override
@@ -492,8 +500,11 @@ public class MessagePackPacker extends AbstractPacker {
         inRawWrite = false;
     }
 
+    /** Forgets any incomplete container or raw, to start a new stream. */
     public void reset() {
         stack.clear();
+        rawToWrite = 0;
+        inRawWrite = false;
     }
 
     @Override
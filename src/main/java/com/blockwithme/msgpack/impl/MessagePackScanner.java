@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2013 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.msgpack.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.blockwithme.msgpack.ValueType;
+
+/**
+ * Finds where the next top-level MessagePack value ends, by walking only the
+ * type headers and lengths. Nothing is decoded nor allocated; raw bodies are
+ * jumped over. Used to frame values in a stream, or to split large inputs.
+ *
+ * @author monster
+ */
+public final class MessagePackScanner {
+
+    /** Returned when the input does not contain a whole value. */
+    public static final int INCOMPLETE = -1;
+
+    /** No instance. */
+    private MessagePackScanner() {
+        // NOP
+    }
+
+    /**
+     * Returns the (absolute) offset just after the top-level value starting
+     * at off, or INCOMPLETE if it does not end within the len bytes.
+     */
+    public static int scan(final byte[] b, final int off, final int len)
+            throws IOException {
+        if ((off < 0) || (len < 0) || (off + len > b.length)) {
+            throw new IndexOutOfBoundsException("off=" + off + " len=" + len
+                    + " length=" + b.length);
+        }
+        final int end = off + len;
+        // The number of values still to walk over
+        long pending = 1;
+        int pos = off;
+        while (pending > 0) {
+            if (pos >= end) {
+                return INCOMPLETE;
+            }
+            final int h = b[pos++] & 0xFF;
+            pending--;
+            final int kind = kind(h);
+            if (kind == HeadBytes.FIXNUM) {
+                continue;
+            }
+            if (kind == HeadBytes.FIXARRAY) {
+                pending += HeadBytes.INLINE[h];
+                continue;
+            }
+            if (kind == HeadBytes.FIXMAP) {
+                pending += 2 * HeadBytes.INLINE[h];
+                continue;
+            }
+            if (kind == HeadBytes.FIXRAW) {
+                pos += HeadBytes.INLINE[h];
+                continue;
+            }
+            final int width = HeadBytes.WIDTH[h];
+            if (width > end - pos) {
+                return INCOMPLETE;
+            }
+            if (kind != HeadBytes.SIZED) {
+                // nil, boolean or number
+                pos += width;
+                continue;
+            }
+            final long count;
+            if (width == 2) {
+                count = ((b[pos] & 0xFF) << 8) | (b[pos + 1] & 0xFF);
+            } else {
+                count = (((b[pos] & 0xFF) << 24) | ((b[pos + 1] & 0xFF) << 16)
+                        | ((b[pos + 2] & 0xFF) << 8) | (b[pos + 3] & 0xFF)) & 0xFFFFFFFFL;
+            }
+            pos += width;
+            if (HeadBytes.TYPE[h] == ValueType.RAW) {
+                // Raw
+                if (count > end - pos) {
+                    return INCOMPLETE;
+                }
+                pos += (int) count;
+            } else {
+                pending += (HeadBytes.TYPE[h] == ValueType.ARRAY) ? count : 2 * count;
+            }
+        }
+        return (pos > end) ? INCOMPLETE : pos;
+    }
+
+    /**
+     * Returns the (absolute) position just after the top-level value starting
+     * at the position of bb, or INCOMPLETE if it does not end before its
+     * limit. The position of bb is not modified. The lengths are always
+     * read big-endian, whatever the byte order of bb.
+     */
+    public static int scan(final ByteBuffer bb) throws IOException {
+        if (bb.hasArray()) {
+            final int base = bb.arrayOffset();
+            final int result = scan(bb.array(), base + bb.position(),
+                    bb.remaining());
+            return (result == INCOMPLETE) ? INCOMPLETE : result - base;
+        }
+        final int end = bb.limit();
+        long pending = 1;
+        int pos = bb.position();
+        while (pending > 0) {
+            if (pos >= end) {
+                return INCOMPLETE;
+            }
+            final int h = bb.get(pos++) & 0xFF;
+            pending--;
+            final int kind = kind(h);
+            if (kind == HeadBytes.FIXNUM) {
+                continue;
+            }
+            if (kind == HeadBytes.FIXARRAY) {
+                pending += HeadBytes.INLINE[h];
+                continue;
+            }
+            if (kind == HeadBytes.FIXMAP) {
+                pending += 2 * HeadBytes.INLINE[h];
+                continue;
+            }
+            if (kind == HeadBytes.FIXRAW) {
+                pos += HeadBytes.INLINE[h];
+                continue;
+            }
+            final int width = HeadBytes.WIDTH[h];
+            if (width > end - pos) {
+                return INCOMPLETE;
+            }
+            if (kind != HeadBytes.SIZED) {
+                pos += width;
+                continue;
+            }
+            // Big-endian, whatever the byte order of bb
+            long count = 0;
+            for (int i = 0; i < width; i++) {
+                count = (count << 8) | (bb.get(pos + i) & 0xFF);
+            }
+            pos += width;
+            if (HeadBytes.TYPE[h] == ValueType.RAW) {
+                if (count > end - pos) {
+                    return INCOMPLETE;
+                }
+                pos += (int) count;
+            } else {
+                pending += (HeadBytes.TYPE[h] == ValueType.ARRAY) ? count : 2 * count;
+            }
+        }
+        return (pos > end) ? INCOMPLETE : pos;
+    }
+
+    /** Returns the kind of a head byte. Fails if invalid. */
+    private static int kind(final int h) throws IOException {
+        final int kind = HeadBytes.KIND[h];
+        if (kind == HeadBytes.INVALID) {
+            throw new IOException("Invalid byte: " + (byte) h);
+        }
+        return kind;
+    }
+}
@@ -30,6 +30,8 @@ import com.blockwithme.msgpack.impl.accept.Accept;
 import com.blockwithme.msgpack.impl.accept.ArrayAccept;
 import com.blockwithme.msgpack.impl.accept.BigIntegerAccept;
 import com.blockwithme.msgpack.impl.accept.ByteArrayAccept;
+import com.blockwithme.msgpack.impl.accept.ByteArraySliceAccept;
+import com.blockwithme.msgpack.impl.accept.ByteBufferAccept;
 import com.blockwithme.msgpack.impl.accept.DoubleAccept;
 import com.blockwithme.msgpack.impl.accept.IntAccept;
 import com.blockwithme.msgpack.impl.accept.LongAccept;
@@ -56,6 +58,12 @@ public class MessagePackUnpacker extends AbstractUnpacker {
 
     private byte headByte = REQUIRE_TO_READ_HEAD;
 
+    /** The HeadBytes kind of headByte, classified once when it is read. */
+    private byte headKind;
+
+    /** The ValueType of headByte, classified once when it is read. */
+    private ValueType headType;
+
     private byte[] raw;
     private int rawFilled;
 
@@ -64,6 +72,8 @@ public class MessagePackUnpacker extends AbstractUnpacker {
     private final BigIntegerAccept bigIntegerAccept = new BigIntegerAccept();
     private final DoubleAccept doubleAccept = new DoubleAccept();
     private final ByteArrayAccept byteArrayAccept = new ByteArrayAccept();
+    private final ByteBufferAccept byteBufferAccept = new ByteBufferAccept();
+    private final ByteArraySliceAccept byteArraySliceAccept = new ByteArraySliceAccept();
     private final StringAccept stringAccept = new StringAccept();
     private final ArrayAccept arrayAccept = new ArrayAccept();
     private final MapAccept mapAccept = new MapAccept();
@@ -90,10 +100,72 @@ public class MessagePackUnpacker extends AbstractUnpacker {
         }
     }
 
+    /**
+     * Constructor for sub-classes that do not read from a DataInput.
+     * They must then override all the in*() methods.
+     */
+    protected MessagePackUnpacker() {
+        this.in = null;
+        this.inputStream = null;
+    }
+
+    /** Reads one byte from the input. */
+    protected byte inByte() throws IOException {
+        return in.readByte();
+    }
+
+    /** Reads a short from the input. */
+    protected short inShort() throws IOException {
+        return in.readShort();
+    }
+
+    /** Reads an int from the input. */
+    protected int inInt() throws IOException {
+        return in.readInt();
+    }
+
+    /** Reads a long from the input. */
+    protected long inLong() throws IOException {
+        return in.readLong();
+    }
+
+    /** Reads a float from the input. */
+    protected float inFloat() throws IOException {
+        return in.readFloat();
+    }
+
+    /** Reads a double from the input. */
+    protected double inDouble() throws IOException {
+        return in.readDouble();
+    }
+
+    /** Reads exactly len bytes from the input. */
+    protected void inFully(final byte[] b, final int off, final int len)
+            throws IOException {
+        in.readFully(b, off, len);
+    }
+
+    /** Skips exactly len bytes of the input. */
+    protected void inSkip(final int len) throws IOException {
+        int left = len;
+        while (left > 0) {
+            final int skipped = in.skipBytes(left);
+            if (skipped > 0) {
+                left -= skipped;
+            } else {
+                // Either EOF (throws), or skipBytes() is not supported
+                in.readByte();
+                left--;
+            }
+        }
+    }
+
     private byte getHeadByte() throws IOException {
         byte b = headByte;
         if (b == REQUIRE_TO_READ_HEAD) {
-            b = headByte = in.readByte();
+            b = headByte = inByte();
+            headKind = HeadBytes.KIND[b & 0xff];
+            headType = HeadBytes.TYPE[b & 0xff];
         }
         return b;
     }
@@ -116,55 +188,86 @@ public class MessagePackUnpacker extends AbstractUnpacker {
 
         final int b = getHeadByte();
 
-        if ((b & 0x80) == 0) { // Positive Fixnum
-            // System.out.println("positive fixnum "+b);
-            a.acceptInteger(b);
-            headByte = REQUIRE_TO_READ_HEAD;
-            return true;
-        }
-
-        if ((b & 0xe0) == 0xe0) { // Negative Fixnum
-            // System.out.println("negative fixnum "+b);
+        switch (headKind) {
+        case HeadBytes.FIXNUM: // Positive and Negative Fixnum
             a.acceptInteger(b);
             headByte = REQUIRE_TO_READ_HEAD;
             return true;
-        }
-
-        if ((b & 0xe0) == 0xa0) { // FixRaw
-            final int count = b & 0x1f;
+        case HeadBytes.FIXRAW: {
+            final int count = HeadBytes.INLINE[b & 0xff];
             if (count == 0) {
                 a.acceptEmptyRaw();
                 headByte = REQUIRE_TO_READ_HEAD;
                 return true;
             }
-            readRawBody(count);
-            a.acceptRaw(raw);
-            raw = null;
+            rawBody(a, count);
             headByte = REQUIRE_TO_READ_HEAD;
             return true;
         }
-
-        if ((b & 0xf0) == 0x90) { // FixArray
-            final int count = b & 0x0f;
-            // System.out.println("fixarray count:"+count);
+        case HeadBytes.FIXARRAY: {
+            final int count = HeadBytes.INLINE[b & 0xff];
             a.acceptArray(count);
             stack.reduceCount();
             stack.pushArray(count);
             headByte = REQUIRE_TO_READ_HEAD;
             return false;
         }
-
-        if ((b & 0xf0) == 0x80) { // FixMap
-            final int count = b & 0x0f;
-            // System.out.println("fixmap count:"+count/2);
+        case HeadBytes.FIXMAP: {
+            final int count = HeadBytes.INLINE[b & 0xff];
             a.acceptMap(count);
             stack.reduceCount();
             stack.pushMap(count);
             headByte = REQUIRE_TO_READ_HEAD;
             return false;
         }
+        case HeadBytes.SIZED:
+            return readOneSized(a, b);
+        default:
+            return readOneWithoutStackLarge(a, b);
+        }
+    }
 
-        return readOneWithoutStackLarge(a, b);
+    /** Reads a raw, array or map with a 16 or 32 bit size. */
+    private boolean readOneSized(final Accept a, final int b)
+            throws IOException {
+        final int count = (HeadBytes.WIDTH[b & 0xff] == 2) ? (inShort() & 0xffff)
+                : inInt();
+        final ValueType type = headType;
+        if (type == ValueType.RAW) {
+            if (count == 0) {
+                a.acceptEmptyRaw();
+                headByte = REQUIRE_TO_READ_HEAD;
+                return true;
+            }
+            checkSize("raw", count, rawSizeLimit);
+            rawBody(a, count);
+            headByte = REQUIRE_TO_READ_HEAD;
+            return true;
+        }
+        if (type == ValueType.ARRAY) {
+            checkSize("array", count, arraySizeLimit);
+            a.acceptArray(count);
+            stack.reduceCount();
+            stack.pushArray(count);
+        } else {
+            checkSize("map", count, mapSizeLimit);
+            a.acceptMap(count);
+            stack.reduceCount();
+            stack.pushMap(count);
+        }
+        headByte = REQUIRE_TO_READ_HEAD;
+        return false;
+    }
+
+    /** Fails if a size is negative (32 bit) or over its limit. */
+    private static void checkSize(final String what, final int count,
+            final int limit) throws IOException {
+        if (count < 0 || count >= limit) {
+            final String reason = String.format(
+                    "Size of %s (%d) over limit at %d", new Object[] { what,
+                            count, limit });
+            throw new IOException(reason);
+        }
     }
 
     private boolean readOneWithoutStackLarge(final Accept a, final int b)
@@ -183,145 +286,45 @@ public class MessagePackUnpacker extends AbstractUnpacker {
             headByte = REQUIRE_TO_READ_HEAD;
             return true;
         case 0xca: // float
-            a.acceptFloat(in.readFloat());
+            a.acceptFloat(inFloat());
             headByte = REQUIRE_TO_READ_HEAD;
             return true;
         case 0xcb: // double
-            a.acceptDouble(in.readDouble());
+            a.acceptDouble(inDouble());
             headByte = REQUIRE_TO_READ_HEAD;
             return true;
         case 0xcc: // unsigned int 8
-            a.acceptUnsignedInteger(in.readByte());
+            a.acceptUnsignedInteger(inByte());
             headByte = REQUIRE_TO_READ_HEAD;
             return true;
         case 0xcd: // unsigned int 16
-            a.acceptUnsignedInteger(in.readShort());
+            a.acceptUnsignedInteger(inShort());
             headByte = REQUIRE_TO_READ_HEAD;
             return true;
         case 0xce: // unsigned int 32
-            a.acceptUnsignedInteger(in.readInt());
+            a.acceptUnsignedInteger(inInt());
             headByte = REQUIRE_TO_READ_HEAD;
             return true;
         case 0xcf: // unsigned int 64
-            a.acceptUnsignedInteger(in.readLong());
+            a.acceptUnsignedInteger(inLong());
             headByte = REQUIRE_TO_READ_HEAD;
             return true;
         case 0xd0: // signed int 8
-            a.acceptInteger(in.readByte());
+            a.acceptInteger(inByte());
             headByte = REQUIRE_TO_READ_HEAD;
             return true;
         case 0xd1: // signed int 16
-            a.acceptInteger(in.readShort());
+            a.acceptInteger(inShort());
             headByte = REQUIRE_TO_READ_HEAD;
             return true;
         case 0xd2: // signed int 32
-            a.acceptInteger(in.readInt());
+            a.acceptInteger(inInt());
             headByte = REQUIRE_TO_READ_HEAD;
             return true;
         case 0xd3: // signed int 64
-            a.acceptInteger(in.readLong());
+            a.acceptInteger(inLong());
             headByte = REQUIRE_TO_READ_HEAD;
             return true;
-        case 0xda: // raw 16
-        {
-            final int count = in.readShort() & 0xffff;
-            if (count == 0) {
-                a.acceptEmptyRaw();
-                headByte = REQUIRE_TO_READ_HEAD;
-                return true;
-            }
-            if (count >= rawSizeLimit) {
-                final String reason = String.format(
-                        "Size of raw (%d) over limit at %d", new Object[] {
-                                count, rawSizeLimit });
-                throw new IOException(reason);
-            }
-            readRawBody(count);
-            a.acceptRaw(raw);
-            raw = null;
-            headByte = REQUIRE_TO_READ_HEAD;
-            return true;
-        }
-        case 0xdb: // raw 32
-        {
-            final int count = in.readInt();
-            if (count == 0) {
-                a.acceptEmptyRaw();
-                headByte = REQUIRE_TO_READ_HEAD;
-                return true;
-            }
-            if (count < 0 || count >= rawSizeLimit) {
-                final String reason = String.format(
-                        "Size of raw (%d) over limit at %d", new Object[] {
-                                count, rawSizeLimit });
-                throw new IOException(reason);
-            }
-            readRawBody(count);
-            a.acceptRaw(raw);
-            raw = null;
-            headByte = REQUIRE_TO_READ_HEAD;
-            return true;
-        }
-        case 0xdc: // array 16
-        {
-            final int count = in.readShort() & 0xffff;
-            if (count >= arraySizeLimit) {
-                final String reason = String.format(
-                        "Size of array (%d) over limit at %d", new Object[] {
-                                count, arraySizeLimit });
-                throw new IOException(reason);
-            }
-            a.acceptArray(count);
-            stack.reduceCount();
-            stack.pushArray(count);
-            headByte = REQUIRE_TO_READ_HEAD;
-            return false;
-        }
-        case 0xdd: // array 32
-        {
-            final int count = in.readInt();
-            if (count < 0 || count >= arraySizeLimit) {
-                final String reason = String.format(
-                        "Size of array (%d) over limit at %d", new Object[] {
-                                count, arraySizeLimit });
-                throw new IOException(reason);
-            }
-            a.acceptArray(count);
-            stack.reduceCount();
-            stack.pushArray(count);
-            headByte = REQUIRE_TO_READ_HEAD;
-            return false;
-        }
-        case 0xde: // map 16
-        {
-            final int count = in.readShort() & 0xffff;
-            if (count >= mapSizeLimit) {
-                final String reason = String.format(
-                        "Size of map (%d) over limit at %d", new Object[] {
-                                count, mapSizeLimit });
-                throw new IOException(reason);
-            }
-            a.acceptMap(count);
-            stack.reduceCount();
-            stack.pushMap(count);
-            headByte = REQUIRE_TO_READ_HEAD;
-            return false;
-        }
-        case 0xdf: // map 32
-        {
-            final int count = in.readInt();
-            if (count < 0 || count >= mapSizeLimit) {
-                final String reason = String.format(
-                        "Size of map (%d) over limit at %d", new Object[] {
-                                count, mapSizeLimit });
-                throw new IOException(reason);
-            }
-            a.acceptMap(count);
-            stack.reduceCount();
-            stack.pushMap(count);
-            headByte = REQUIRE_TO_READ_HEAD;
-            return false;
-        }
         default:
             // System.out.println("unknown b "+(b&0xff));
             // headByte = CS_INVALID
@@ -330,6 +333,27 @@ public class MessagePackUnpacker extends AbstractUnpacker {
         }
     }
 
+    /** Reads a raw body, or skips it without reading it for skip(). */
+    private void rawBody(final Accept a, final int size) throws IOException {
+        if (a == skipAccept) {
+            inSkip(size);
+        } else {
+            readRawBody(a, size);
+        }
+    }
+
+    /**
+     * Reads a raw body of the given size, and passes it to the Accept.
+     * Sub-classes with the whole input in memory can pass a view of it to
+     * Accept.refer() instead.
+     */
+    protected void readRawBody(final Accept a, final int size)
+            throws IOException {
+        readRawBody(size);
+        a.acceptRaw(raw);
+        raw = null;
+    }
+
     private void readRawBody(final int size) throws IOException {
         raw = new byte[size];
         rawFilled = 0;
@@ -338,7 +362,7 @@ public class MessagePackUnpacker extends AbstractUnpacker {
 
     private void readRawBodyCont() throws IOException {
         final int len = raw.length - rawFilled;
-        in.readFully(raw, rawFilled, len);
+        inFully(raw, rawFilled, len);
         rawFilled += len;
     }
 
@@ -490,6 +514,18 @@ public class MessagePackUnpacker extends AbstractUnpacker {
         return byteArrayAccept.value;
     }
 
+    @Override
+    public ByteBuffer readByteBuffer() throws IOException {
+        readOne(byteBufferAccept);
+        return byteBufferAccept.value;
+    }
+
+    @Override
+    public ByteArraySlice readByteArraySlice() throws IOException {
+        readOne(byteArraySliceAccept);
+        return byteArraySliceAccept.value;
+    }
+
     @Override
     public String readUTF() throws IOException {
         readOne(stringAccept);
@@ -502,6 +538,65 @@ public class MessagePackUnpacker extends AbstractUnpacker {
         return arrayAccept.size;
     }
 
+    /** Returns how many of len values can be read from the current array. */
+    private int batchSize(final int len) throws IOException {
+        if (!stack.topIsArray()) {
+            throw new IOException("Bulk reads require readArrayBegin()");
+        }
+        return Math.min(len, stack.getTopCount());
+    }
+
+    @Override
+    public int readInts(final int[] dst, final int off, final int len)
+            throws IOException {
+        final int n = batchSize(len);
+        final IntAccept a = intAccept;
+        int i = 0;
+        try {
+            while (i < n) {
+                readOneWithoutStack(a);
+                dst[off + i++] = a.value;
+            }
+        } finally {
+            stack.reduceCount(i);
+        }
+        return n;
+    }
+
+    @Override
+    public int readLongs(final long[] dst, final int off, final int len)
+            throws IOException {
+        final int n = batchSize(len);
+        final LongAccept a = longAccept;
+        int i = 0;
+        try {
+            while (i < n) {
+                readOneWithoutStack(a);
+                dst[off + i++] = a.value;
+            }
+        } finally {
+            stack.reduceCount(i);
+        }
+        return n;
+    }
+
+    @Override
+    public int readDoubles(final double[] dst, final int off, final int len)
+            throws IOException {
+        final int n = batchSize(len);
+        final DoubleAccept a = doubleAccept;
+        int i = 0;
+        try {
+            while (i < n) {
+                readOneWithoutStack(a);
+                dst[off + i++] = a.value;
+            }
+        } finally {
+            stack.reduceCount(i);
+        }
+        return n;
+    }
+
     @Override
     public void readArrayEnd(final boolean check) throws IOException {
         if (!stack.topIsArray()) {
@@ -570,55 +665,26 @@ public class MessagePackUnpacker extends AbstractUnpacker {
     @Override
     public ValueType getNextType() throws IOException {
         final int b = getHeadByte();
-        if ((b & 0x80) == 0) { // Positive Fixnum
-            return ValueType.INTEGER;
-        }
-        if ((b & 0xe0) == 0xe0) { // Negative Fixnum
-            return ValueType.INTEGER;
-        }
-        if ((b & 0xe0) == 0xa0) { // FixRaw
-            return ValueType.RAW;
-        }
-        if ((b & 0xf0) == 0x90) { // FixArray
-            return ValueType.ARRAY;
-        }
-        if ((b & 0xf0) == 0x80) { // FixMap
-            return ValueType.MAP;
-        }
-        switch (b & 0xff) {
-        case 0xc0: // nil
-            return ValueType.NIL;
-        case 0xc2: // false
-        case 0xc3: // true
-            return ValueType.BOOLEAN;
-        case 0xca: // float
-        case 0xcb: // double
-            return ValueType.FLOAT;
-        case 0xcc: // unsigned int 8
-        case 0xcd: // unsigned int 16
-        case 0xce: // unsigned int 32
-        case 0xcf: // unsigned int 64
-        case 0xd0: // signed int 8
-        case 0xd1: // signed int 16
-        case 0xd2: // signed int 32
-        case 0xd3: // signed int 64
-            return ValueType.INTEGER;
-        case 0xda: // raw 16
-        case 0xdb: // raw 32
-            return ValueType.RAW;
-        case 0xdc: // array 16
-        case 0xdd: // array 32
-            return ValueType.ARRAY;
-        case 0xde: // map 16
-        case 0xdf: // map 32
-            return ValueType.MAP;
-        default:
+        final ValueType result = headType;
+        if (result == null) {
             throw new IOException("Invalid byte: " + b); // TODO error FormatException
         }
+        return result;
+    }
+
+    /**
+     * Enables a cache of up to entries ASCII Strings, of up to maxLength
+     * chars, so that repeated values return the same String instance.
+     * 0 entries disables it (the default).
+     */
+    public void setStringCache(final int entries, final int maxLength) {
+        stringAccept.setCache(entries, maxLength);
     }
 
     public void reset() {
         raw = null;
+        headByte = REQUIRE_TO_READ_HEAD;
+        inReadRaw = false;
         stack.clear();
     }
 
@@ -637,8 +703,9 @@ public class MessagePackUnpacker extends AbstractUnpacker {
         checkInRawRead();
         if (inReadRaw) {
             if (tempRawReadDataInput == null) {
-                tempRawReadDataInput = new DataInputBuffer(
-                        byteArrayAccept.value);
+                final ByteArraySlice slice = byteArraySliceAccept.value;
+                tempRawReadDataInput = new DataInputBuffer(slice.o, slice.off,
+                        slice.len);
             }
             return tempRawReadDataInput;
         }
@@ -676,9 +743,9 @@ public class MessagePackUnpacker extends AbstractUnpacker {
         if (inReadRaw) {
             throw new IOException("Already in read raw!");
         }
-        readOne(byteArrayAccept);
+        readOne(byteArraySliceAccept);
         inReadRaw = true;
-        return (readRawToRead = byteArrayAccept.value.length);
+        return (readRawToRead = byteArraySliceAccept.value.len);
     }
 
     /* (non-Javadoc)
@@ -710,14 +777,12 @@ public class MessagePackUnpacker extends AbstractUnpacker {
     @Override
     public ByteBuffer readPartialByteBuffer(final int bytes) throws IOException {
         checkInRawRead();
-        if ((readRawToRead == bytes)
-                && (readRawToRead == byteArrayAccept.value.length)) {
-            readRawToRead = 0;
-            return ByteBuffer.wrap(byteArrayAccept.value);
-        }
+        final ByteArraySlice slice = byteArraySliceAccept.value;
+        final int offset = slice.off + slice.len - readRawToRead;
         rawRead(bytes);
-        final int offset = byteArrayAccept.value.length - readRawToRead;
-        return ByteBuffer.wrap(byteArrayAccept.value, offset, bytes);
+        final ByteBuffer result = ByteBuffer.wrap(slice.o, offset, bytes)
+                .slice();
+        return isZeroCopy() ? result.asReadOnlyBuffer() : result;
     }
 
     /* (non-Javadoc)
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2013 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.msgpack.impl;
+
+import java.io.IOException;
+
+import com.blockwithme.msgpack.ObjectPacker;
+import com.blockwithme.msgpack.ObjectUnpacker;
+import com.blockwithme.msgpack.schema.SchemaManager;
+import com.blockwithme.msgpack.templates.PackerContext;
+import com.blockwithme.msgpack.templates.UnpackerContext;
+import com.blockwithme.util.DataOutputBuffer;
+
+/**
+ * A reusable ObjectPacker/ObjectUnpacker pair, for many small messages.
+ *
+ * The packers, unpackers, contexts, trackers and buffers are created once,
+ * and reset between messages. The steady state does not allocate anything
+ * per message, beyond the objects read, as long as the messages are read
+ * from one reused receive array (see startUnpacking()).
+ *
+ * An ObjectCodec is not thread-safe. Use one per thread (for example in a
+ * ThreadLocal), or pool them.
+ *
+ * @author monster
+ */
+public class ObjectCodec {
+
+    /** The initial output buffer size. */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** The output buffer. */
+    private final DataOutputBuffer out;
+
+    /** The packer. */
+    private final BufferedMessagePackPacker packer;
+
+    /** The packer context. */
+    private final PackerContext packerContext;
+
+    /** The object packer; created on first use. */
+    private ObjectPackerImpl objectPacker;
+
+    /** The unpacker. */
+    private final ByteBufferMessagePackUnpacker unpacker;
+
+    /** The unpacker context. */
+    private final UnpackerContext unpackerContext;
+
+    /** The object unpacker; created on first use. */
+    private ObjectUnpackerImpl objectUnpacker;
+
+    /** Creates an ObjectCodec, writing messages with the given schema. */
+    public ObjectCodec(final SchemaManager schemaManager, final int schema) {
+        out = new DataOutputBuffer(INITIAL_CAPACITY);
+        packer = new BufferedMessagePackPacker(out);
+        packerContext = new PackerContext(schemaManager);
+        packerContext.schemaID = schema;
+        unpacker = new ByteBufferMessagePackUnpacker(new byte[0]);
+        unpackerContext = new UnpackerContext(schemaManager);
+    }
+
+    /**
+     * Returns the packer context. Options and window must be set before the
+     * first message.
+     */
+    public PackerContext packerContext() {
+        return packerContext;
+    }
+
+    /** Returns the unpacker context. */
+    public UnpackerContext unpackerContext() {
+        return unpackerContext;
+    }
+
+    /** Returns the unpacker, for example to enable zero-copy. */
+    public ByteBufferMessagePackUnpacker unpacker() {
+        return unpacker;
+    }
+
+    /**
+     * Starts a new message, discarding the previous one, and returns the
+     * ObjectPacker to write it with.
+     */
+    public ObjectPacker startPacking() throws IOException {
+        out.reset();
+        packer.reset();
+        if (objectPacker == null) {
+            objectPacker = new ObjectPackerImpl(packer, packerContext);
+        } else {
+            objectPacker.reset();
+        }
+        return objectPacker;
+    }
+
+    /**
+     * Completes the current message, and returns the buffer containing it.
+     * The buffer content is only valid until the next startPacking().
+     */
+    public DataOutputBuffer finishPacking() throws IOException {
+        packer.flush();
+        return out;
+    }
+
+    /**
+     * Starts reading a message from a byte array slice, and returns the
+     * ObjectUnpacker to read it with. The objects of the previous message are
+     * forgotten; close() the ObjectUnpacker after each message, to call
+     * postDeser() on them.
+     *
+     * Callers should receive all messages into one reused array, and pass
+     * slices of it. Only then is the input ByteBuffer reset in place. Each
+     * call with a different array wraps it in new ByteBuffers.
+     */
+    public ObjectUnpacker startUnpacking(final byte[] bytes, final int off,
+            final int len) throws IOException {
+        unpacker.reset(bytes, off, len);
+        if (objectUnpacker == null) {
+            objectUnpacker = new ObjectUnpackerImpl(unpacker, unpackerContext);
+        } else {
+            objectUnpacker.reset();
+        }
+        return objectUnpacker;
+    }
+}
@@ -60,10 +60,38 @@ public class ObjectPackerImpl implements ObjectPacker {
         this.context = Objects.requireNonNull(context);
         context.packer = packer;
         context.objectPacker = this;
-        final Schema schema = context.getSchema();
-        basicTemplates = schema.basicTemplates;
-        packer.writeIndex(schema.format);
+        basicTemplates = writeHeader().basicTemplates;
+    }
+
+    /**
+     * Prepares the tracker, and writes the stream header. Returns the
+     * schema, refreshed for the current schema ID.
+     */
+    private Schema writeHeader() throws IOException {
+        final Schema schema = context.refreshSchema();
+        if (context.window > 0) {
+            context.options |= PackerContext.WINDOW;
+        }
+        if (context.tracker.getWindow() != context.window) {
+            context.tracker.setWindow(context.window);
+        } else {
+            context.tracker.clear();
+        }
+        packer.writeIndex(context.formatIndex());
         packer.writeIndex(schema.schema);
+        if (context.hasOption(PackerContext.WINDOW)) {
+            packer.writeIndex(context.window);
+        }
+        return schema;
+    }
+
+    /**
+     * Starts a new stream, forgetting the objects written so far, and writes
+     * its header. The packer and its output must be reset first. This allows
+     * reusing the ObjectPackerImpl and its context for multiple messages.
+     */
+    public void reset() throws IOException {
+        writeHeader();
     }
 
     /* (non-Javadoc)
@@ -74,6 +102,22 @@ public class ObjectPackerImpl implements ObjectPacker {
         return packer;
     }
 
+    /* (non-Javadoc)
+     * @see com.blockwithme.msgpack.ObjectPacker#startMessage(boolean)
+     */
+    @Override
+    public ObjectPacker startMessage(final boolean resetTracking)
+            throws IOException {
+        if (!context.hasOption(PackerContext.SESSION)) {
+            throw new IllegalStateException("Not a SESSION stream");
+        }
+        if (resetTracking) {
+            context.tracker.clear();
+        }
+        packer.writeBoolean(resetTracking);
+        return this;
+    }
+
     /** Writes an Object out. Object must be compatible with template. */
     @Override
     public ObjectPacker writeObject(final Object o,
@@ -47,7 +47,10 @@ public class ObjectUnpackerImpl implements ObjectUnpacker {
     protected final UnpackerContext context;
 
     /** The BasicTemplates */
-    protected final BasicTemplates basicTemplates;
+    protected BasicTemplates basicTemplates;
+
+    /** The nesting depth of readObject() calls. */
+    private int depth;
 
     /**
      * Creates a new ObjectUnpackerImpl.
@@ -60,18 +63,58 @@ public class ObjectUnpackerImpl implements ObjectUnpacker {
         this.context = Objects.requireNonNull(context);
         context.unpacker = unpacker;
         context.objectUnpacker = this;
-        context.format = unpacker.readIndex();
+        readHeader();
+    }
+
+    /** Reads the stream header. */
+    private void readHeader() throws IOException {
+        context.formatIndex(unpacker.readIndex());
         context.schemaID = unpacker.readIndex();
-        final Schema schema = context.getSchema();
+        context.window = context.hasOption(UnpackerContext.WINDOW) ? unpacker
+                .readIndex() : 0;
+        final Schema schema = context.refreshSchema();
         basicTemplates = schema.basicTemplates;
     }
 
+    /**
+     * Starts a new stream, forgetting the objects read so far, without calling
+     * their postDeser() (call close() first), and reads its header. The
+     * unpacker must be reset to the new input first. This allows reusing the
+     * ObjectUnpackerImpl and its context for multiple messages.
+     */
+    public void reset() throws IOException {
+        context.previous.clear();
+        context.previousOffset = 0;
+        depth = 0;
+        readHeader();
+    }
+
     /** Returns the underlying unpacker, if any, otherwise self. */
     @Override
     public Unpacker unpacker() {
         return unpacker;
     }
 
+    /* (non-Javadoc)
+     * @see com.blockwithme.msgpack.ObjectUnpacker#startMessage()
+     */
+    @Override
+    public boolean startMessage() throws IOException {
+        if (!context.hasOption(UnpackerContext.SESSION)) {
+            throw new IllegalStateException("Not a SESSION stream");
+        }
+        if (depth != 0) {
+            throw new IllegalStateException("Within readObject()");
+        }
+        final boolean resetTracking = unpacker.readBoolean();
+        if (resetTracking) {
+            close();
+            context.previous.clear();
+            context.previousOffset = 0;
+        }
+        return resetTracking;
+    }
+
     /* (non-Javadoc)
      * @see com.blockwithme.msgpack.Unpacker#readBoolean()
      */
@@ -248,29 +291,38 @@ public class ObjectUnpackerImpl implements ObjectUnpacker {
     /** Reads any Object. */
     @Override
     public Object readObject() throws IOException {
-        return AbstractTemplate.readObject(context, null, true);
+        return readObject(null, true);
     }
 
     /** Reads any Object. Fails if Object type does not match template type. */
     @Override
     public Object readObject(final Template<?> template) throws IOException {
-        return AbstractTemplate.readObject(context, template, true);
+        return readObject(template, true);
     }
 
     /** Reads any Object. */
     @Override
     public Object readObject(final boolean ifObjectArrayCanContainNullValue)
             throws IOException {
-        return AbstractTemplate.readObject(context, null,
-                ifObjectArrayCanContainNullValue);
+        return readObject(null, ifObjectArrayCanContainNullValue);
     }
 
     /** Reads any Object. Fails if Object type does not match template type. */
     @Override
     public Object readObject(final Template<?> template,
             final boolean ifObjectArrayCanContainNullValue) throws IOException {
-        return AbstractTemplate.readObject(context, template,
-                ifObjectArrayCanContainNullValue);
+        final Object result;
+        depth++;
+        try {
+            result = AbstractTemplate.readObject(context, template,
+                    ifObjectArrayCanContainNullValue);
+        } finally {
+            depth--;
+        }
+        if (depth == 0) {
+            context.trimPrevious();
+        }
+        return result;
     }
 
     /* (non-Javadoc)
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2013 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.msgpack.impl;
+
+/**
+ * Encodes Strings to UTF-8 directly into a byte[], without going through
+ * String.getBytes(). Unpaired surrogates are encoded as '?', like
+ * String.getBytes("UTF-8") does.
+ *
+ * @author monster
+ */
+final class UTF8 {
+
+    /** Maximum number of bytes a single char can be encoded to. */
+    static final int MAX_BYTES_PER_CHAR = 3;
+
+    private UTF8() {
+        // NOP
+    }
+
+    /** Returns the number of bytes needed to encode s. */
+    static int length(final String s) {
+        final int n = s.length();
+        int i = 0;
+        // ASCII fast path
+        while ((i < n) && (s.charAt(i) < 0x80)) {
+            i++;
+        }
+        int result = i;
+        for (; i < n; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                result++;
+            } else if (c < 0x800) {
+                result += 2;
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && (i + 1 < n)
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    result += 4;
+                    i++;
+                } else {
+                    result++;
+                }
+            } else {
+                result += 3;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Encodes the chars [from, to[ of s into dst, starting at p, and returns
+     * the new position. dst must be big enough.
+     */
+    static int encode(final String s, final int from, final int to,
+            final byte[] dst, int p) {
+        int i = from;
+        // ASCII fast path
+        for (; i < to; i++) {
+            final char c = s.charAt(i);
+            if (c >= 0x80) {
+                break;
+            }
+            dst[p++] = (byte) c;
+        }
+        for (; i < to; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                dst[p++] = (byte) c;
+            } else if (c < 0x800) {
+                dst[p++] = (byte) (0xc0 | (c >> 6));
+                dst[p++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                final char low;
+                if (Character.isHighSurrogate(c) && (i + 1 < to)
+                        && Character.isLowSurrogate(low = s.charAt(i + 1))) {
+                    final int cp = Character.toCodePoint(c, low);
+                    dst[p++] = (byte) (0xf0 | (cp >> 18));
+                    dst[p++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    dst[p++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    dst[p++] = (byte) (0x80 | (cp & 0x3f));
+                    i++;
+                } else {
+                    dst[p++] = (byte) '?';
+                }
+            } else {
+                dst[p++] = (byte) (0xe0 | (c >> 12));
+                dst[p++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                dst[p++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return p;
+    }
+}
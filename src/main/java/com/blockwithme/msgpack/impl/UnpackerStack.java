@@ -76,6 +76,10 @@ public final class UnpackerStack {
         counts[top]--;
     }
 
+    public void reduceCount(final int n) {
+        counts[top] -= n;
+    }
+
     public void raiseCount() {
         counts[top]++;
     }
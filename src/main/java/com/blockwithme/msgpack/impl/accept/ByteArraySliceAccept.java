@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2013 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.msgpack.impl.accept;
+
+import java.nio.ByteBuffer;
+
+import com.blockwithme.msgpack.impl.ByteArraySlice;
+
+/**
+ * Accepts a raw as a ByteArraySlice.
+ *
+ * When refer() receives a gift backed by an array, the result points directly
+ * into that array, instead of being a copy.
+ *
+ * @author monster
+ */
+public final class ByteArraySliceAccept extends Accept {
+    private static final byte[] EMPTY = new byte[0];
+
+    public ByteArraySlice value;
+
+    @Override
+    public void acceptRaw(final byte[] raw) {
+        this.value = new ByteArraySlice(raw, 0, raw.length);
+    }
+
+    @Override
+    public void acceptEmptyRaw() {
+        this.value = new ByteArraySlice(EMPTY, 0, 0);
+    }
+
+    @Override
+    public void refer(final ByteBuffer bb, final boolean gift) {
+        final int len = bb.remaining();
+        if (gift && bb.hasArray()) {
+            this.value = new ByteArraySlice(bb.array(), bb.arrayOffset()
+                    + bb.position(), len);
+        } else {
+            final byte[] copy = new byte[len];
+            bb.get(copy);
+            this.value = new ByteArraySlice(copy, 0, len);
+        }
+    }
+}
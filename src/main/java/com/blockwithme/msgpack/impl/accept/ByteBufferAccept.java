@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2013 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.msgpack.impl.accept;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Accepts a raw as a ByteBuffer.
+ *
+ * When refer() receives a gift, the result is a read-only view of the input,
+ * instead of a copy. The ByteBuffer passed to refer() itself may be reused by
+ * the caller, so it is never kept.
+ *
+ * @author monster
+ */
+public final class ByteBufferAccept extends Accept {
+    public ByteBuffer value;
+
+    @Override
+    public void acceptRaw(final byte[] raw) {
+        this.value = ByteBuffer.wrap(raw);
+    }
+
+    @Override
+    public void acceptEmptyRaw() {
+        this.value = ByteBuffer.allocate(0);
+    }
+
+    @Override
+    public void refer(final ByteBuffer bb, final boolean gift) {
+        if (gift) {
+            this.value = bb.asReadOnlyBuffer().slice();
+        } else {
+            final byte[] copy = new byte[bb.remaining()];
+            bb.get(copy);
+            this.value = ByteBuffer.wrap(copy);
+        }
+    }
+}
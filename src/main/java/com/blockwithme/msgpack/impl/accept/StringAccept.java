@@ -29,25 +29,62 @@ import com.blockwithme.msgpack.MessageTypeException;
 /**
  * Part of the original low-level Message-Pack Java implementation.
  *
+ * Decodes UTF-8 directly from the raw bytes to a String. The common 1, 2 and 3
+ * bytes sequences are decoded inline; anything else (4 bytes sequences and
+ * malformed input) goes through the CharsetDecoder.
+ *
+ * Optionally, short ASCII strings can be looked up in a small direct-mapped
+ * cache, so that frequently repeated values like map keys return the same
+ * String instance, without allocating.
+ *
  * @author monster
  */
 public final class StringAccept extends Accept {
+    /** Maximum size of the reusable buffers. */
+    private static final int MAX_BUFFER = 65536;
+
     public String value;
     private final CharsetDecoder decoder;
 
+    /** Reusable char buffer. */
+    private char[] chars = new char[256];
+
+    /** Reusable byte buffer, for direct ByteBuffers. */
+    private byte[] bytes;
+
+    /** The String cache, or null. Size is a power of 2. */
+    private String[] cache;
+
+    /** The maximum length of cached Strings. */
+    private int cacheMaxLength;
+
     public StringAccept() {
         this.decoder = Charset.forName("UTF-8").newDecoder()
                 .onMalformedInput(CodingErrorAction.REPORT)
                 .onUnmappableCharacter(CodingErrorAction.REPORT);
     }
 
+    /**
+     * Enables the String cache, for ASCII Strings up to maxLength in length.
+     * The cache is rounded up to a power of two entries. 0 disables it.
+     */
+    public void setCache(final int entries, final int maxLength) {
+        if (entries <= 0) {
+            cache = null;
+            cacheMaxLength = 0;
+        } else {
+            int size = 1;
+            while (size < entries) {
+                size <<= 1;
+            }
+            cache = new String[size];
+            cacheMaxLength = maxLength;
+        }
+    }
+
     @Override
     public void acceptRaw(final byte[] raw) {
-        try {
-            this.value = decoder.decode(ByteBuffer.wrap(raw)).toString();
-        } catch (final CharacterCodingException ex) {
-            throw new MessageTypeException(ex);
-        }
+        this.value = decode(raw, 0, raw.length);
     }
 
     @Override
@@ -58,8 +95,111 @@ public final class StringAccept extends Accept {
     @Override
     public void refer(final ByteBuffer bb, final boolean gift)
             throws IOException {
+        final int len = bb.remaining();
+        if (bb.hasArray()) {
+            this.value = decode(bb.array(), bb.arrayOffset() + bb.position(),
+                    len);
+        } else {
+            byte[] b = bytes;
+            if ((b == null) || (b.length < len)) {
+                b = new byte[len];
+                if (len <= MAX_BUFFER) {
+                    bytes = b;
+                }
+            }
+            final int p = bb.position();
+            bb.get(b, 0, len);
+            bb.position(p);
+            this.value = decode(b, 0, len);
+        }
+    }
+
+    /** Decodes len bytes of b, starting at off. */
+    private String decode(final byte[] b, final int off, final int len) {
+        final int end = off + len;
+        // ASCII fast path, computing the cache hash on the way.
+        int i = off;
+        int hash = 0;
+        while ((i < end) && (b[i] >= 0)) {
+            hash = 31 * hash + b[i];
+            i++;
+        }
+        if ((i == end) && (len <= cacheMaxLength) && (cache != null)) {
+            return cached(b, off, len, hash);
+        }
+        char[] c = chars;
+        if (c.length < len) {
+            c = new char[len];
+            if (len <= MAX_BUFFER) {
+                chars = c;
+            }
+        }
+        int n = 0;
+        for (int j = off; j < i; j++) {
+            c[n++] = (char) b[j];
+        }
+        while (i < end) {
+            final int b1 = b[i];
+            if (b1 >= 0) {
+                c[n++] = (char) b1;
+                i++;
+            } else if (((b1 & 0xe0) == 0xc0) && (b1 != (byte) 0xc0)
+                    && (b1 != (byte) 0xc1) && (i + 1 < end)
+                    && isContinuation(b[i + 1])) {
+                c[n++] = (char) (((b1 & 0x1f) << 6) | (b[i + 1] & 0x3f));
+                i += 2;
+            } else if (((b1 & 0xf0) == 0xe0) && (i + 2 < end)
+                    && isContinuation(b[i + 1]) && isContinuation(b[i + 2])) {
+                final char ch = (char) (((b1 & 0x0f) << 12)
+                        | ((b[i + 1] & 0x3f) << 6) | (b[i + 2] & 0x3f));
+                if ((ch < 0x800) || Character.isSurrogate(ch)) {
+                    // overlong or surrogate: let the decoder report it
+                    return slowDecode(b, off, len);
+                }
+                c[n++] = ch;
+                i += 3;
+            } else {
+                // 4 bytes sequence, or malformed
+                return slowDecode(b, off, len);
+            }
+        }
+        return new String(c, 0, n);
+    }
+
+    /** Is this byte a UTF-8 continuation byte? */
+    private static boolean isContinuation(final byte b) {
+        return (b & 0xc0) == 0x80;
+    }
+
+    /** Looks up an ASCII String in the cache, adding it if missing. */
+    private String cached(final byte[] b, final int off, final int len,
+            final int hash) {
+        final String[] cache = this.cache;
+        final int index = (hash ^ (hash >>> 16)) & (cache.length - 1);
+        final String s = cache[index];
+        if ((s != null) && (s.length() == len)) {
+            int i = 0;
+            while ((i < len) && (s.charAt(i) == b[off + i])) {
+                i++;
+            }
+            if (i == len) {
+                return s;
+            }
+        }
+        char[] c = chars;
+        if (c.length < len) {
+            c = chars = new char[len];
+        }
+        for (int i = 0; i < len; i++) {
+            c[i] = (char) b[off + i];
+        }
+        return cache[index] = new String(c, 0, len);
+    }
+
+    /** Decodes with the CharsetDecoder, which reports malformed input. */
+    private String slowDecode(final byte[] b, final int off, final int len) {
         try {
-            this.value = decoder.decode(bb).toString();
+            return decoder.decode(ByteBuffer.wrap(b, off, len)).toString();
         } catch (final CharacterCodingException ex) {
             throw new MessageTypeException(ex);
         }
@@ -57,9 +57,19 @@ public abstract class BasicSchemaManager extends SchemaManagerBase {
         }
         return createSchema(format, schemaID,
                 list.toArray(new Template<?>[list.size()]),
-                getBasicTemplateCount(schemaID));
+                getBasicTemplateCount(schemaID), getLayout(schemaID));
     }
 
     /** Returns the basicTemplates count, for the given schema. */
     protected abstract int getBasicTemplateCount(final int schemaID);
+
+    /**
+     * Returns the template IDs that get the smallest wire IDs, hottest first,
+     * for the given schema, or null for none. Like the templates, it must
+     * never change for an existing schema. It can be computed with
+     * Schema.layout(int[]), from PackerContext.templateCounts.
+     */
+    protected int[] getLayout(final int schemaID) {
+        return null;
+    }
 }
@@ -15,6 +15,11 @@
  */
 package com.blockwithme.msgpack.schema;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 
 import com.blockwithme.msgpack.templates.BasicTemplates;
@@ -50,18 +55,158 @@ public class Schema {
     /** The "fallback" (catch-all) templates */
     public final Template<?>[] fallbackTemplates;
 
+    /**
+     * Maps template IDs to the IDs written on the wire, or null if they are
+     * the same. Small wire IDs have the smallest encodings.
+     */
+    public final int[] idToWire;
+
+    /** Maps the IDs written on the wire to template IDs, or null. */
+    public final int[] wireToId;
+
+    /** The template and array depth of a concrete class. */
+    public static final class ClassInfo {
+
+        /** The template of the (un-arrayed) class, or null if none. */
+        public final Template<?> template;
+
+        /** The non-primitive array depth of the class. */
+        public final int depth;
+
+        /** Constructor */
+        public ClassInfo(final Template<?> theTemplate, final int theDepth) {
+            template = theTemplate;
+            depth = theDepth;
+        }
+    }
+
+    /** Caches the ClassInfo of classes, including those without template. */
+    private final ClassValue<ClassInfo> classInfos = new ClassValue<ClassInfo>() {
+        @Override
+        protected ClassInfo computeValue(final Class<?> cls) {
+            return computeClassInfo(cls);
+        }
+    };
+
     /** Constructor */
     public Schema(final int theFormat, final int theSchema,
             final BasicTemplates theBasicTemplates,
             final Template<?>[] theIdToTemplate,
             final Map<Class<?>, Template<?>> theClassToTemplate,
             final Template<?>[] theFallbackTemplates) {
+        this(theFormat, theSchema, theBasicTemplates, theIdToTemplate,
+                theClassToTemplate, theFallbackTemplates, null);
+    }
+
+    /**
+     * Constructor. The layout lists the template IDs that get the smallest
+     * wire IDs, hottest first. The other templates follow, in ID order.
+     */
+    public Schema(final int theFormat, final int theSchema,
+            final BasicTemplates theBasicTemplates,
+            final Template<?>[] theIdToTemplate,
+            final Map<Class<?>, Template<?>> theClassToTemplate,
+            final Template<?>[] theFallbackTemplates, final int[] layout) {
         format = theFormat;
         schema = theSchema;
         basicTemplates = theBasicTemplates;
         idToTemplate = theIdToTemplate;
         classToTemplate = theClassToTemplate;
         fallbackTemplates = theFallbackTemplates;
+        if ((layout == null) || (layout.length == 0)) {
+            idToWire = null;
+            wireToId = null;
+        } else {
+            final int count = idToTemplate.length;
+            idToWire = new int[count];
+            wireToId = new int[count];
+            Arrays.fill(idToWire, -1);
+            int wire = 0;
+            for (final int id : layout) {
+                if ((id < 0) || (id >= count) || (idToWire[id] != -1)) {
+                    throw new IllegalArgumentException("Bad layout ID: " + id);
+                }
+                idToWire[id] = wire;
+                wireToId[wire++] = id;
+            }
+            for (int id = 0; id < count; id++) {
+                if (idToWire[id] == -1) {
+                    idToWire[id] = wire;
+                    wireToId[wire++] = id;
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes a layout from the number of objects written per template ID,
+     * for example with PackerContext.templateCounts. Returns the IDs of the
+     * templates that were used, most used first.
+     */
+    public static int[] layout(final int[] counts) {
+        final List<Integer> ids = new ArrayList<Integer>();
+        for (int id = 0; id < counts.length; id++) {
+            if (counts[id] > 0) {
+                ids.add(id);
+            }
+        }
+        // Stable, so equal counts stay in ID order
+        Collections.sort(ids, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer id1, final Integer id2) {
+                final int c1 = counts[id1];
+                final int c2 = counts[id2];
+                return (c1 == c2) ? 0 : ((c1 > c2) ? -1 : 1);
+            }
+        });
+        final int[] result = new int[ids.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ids.get(i);
+        }
+        return result;
+    }
+
+    /** Returns the wire ID of a template ID. */
+    public final int toWire(final int id) {
+        return (idToWire == null) ? id : idToWire[id];
+    }
+
+    /** Returns the template ID of a wire ID, or the wire ID if unknown. */
+    public final int fromWire(final int wire) {
+        if ((wireToId == null) || (wire < 0) || (wire >= wireToId.length)) {
+            return wire;
+        }
+        return wireToId[wire];
+    }
+
+    /** Computes the ClassInfo of a class. */
+    protected ClassInfo computeClassInfo(final Class<?> cls) {
+        // Object array is a special case
+        Class<?> c = cls;
+        Class<?> cc;
+        int depth = 0;
+        while (c.isArray() && !(cc = c.getComponentType()).isPrimitive()) {
+            depth++;
+            c = cc;
+        }
+        Template<?> template = classToTemplate.get(c);
+        if (template == null) {
+            for (final Template<?> f : fallbackTemplates) {
+                if (f.getType().isAssignableFrom(c)) {
+                    template = f;
+                    break;
+                }
+            }
+        }
+        return new ClassInfo(template, depth);
+    }
+
+    /**
+     * Returns the template and array depth of a class. The result is computed
+     * only once per class.
+     */
+    public final ClassInfo classInfo(final Class<?> cls) {
+        return classInfos.get(cls);
     }
 
 }
@@ -20,6 +20,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.blockwithme.msgpack.templates.BasicTemplates;
 import com.blockwithme.msgpack.templates.Template;
@@ -32,8 +33,11 @@ import com.blockwithme.msgpack.templates._Template;
  */
 public abstract class SchemaManagerBase implements SchemaManager {
 
-    /** Map ID to schema. */
-    private final Map<Integer, Schema> schemas = new HashMap<Integer, Schema>();
+    /** The basic templates, shared by all schemas. */
+    private static final BasicTemplates BASIC_TEMPLATES = new BasicTemplates();
+
+    /** Map ID to schema. Only written while holding its lock. */
+    private final ConcurrentHashMap<Integer, Schema> schemas = new ConcurrentHashMap<Integer, Schema>();
 
     /* (non-Javadoc)
      * @see com.blockwithme.msgpack.schema.SchemaManager#getSchema(int)
@@ -47,12 +51,15 @@ public abstract class SchemaManagerBase implements SchemaManager {
             throw new IllegalArgumentException("schemaID: " + schemaID);
         }
         final Integer key = schemaID;
-        Schema result;
-        synchronized (schemas) {
-            result = schemas.get(key);
-            if (result == null) {
-                result = createSchema(format, schemaID);
-                schemas.put(key, result);
+        Schema result = schemas.get(key);
+        if (result == null) {
+            // Only creation is synchronized, so a schema is created once.
+            synchronized (schemas) {
+                result = schemas.get(key);
+                if (result == null) {
+                    result = createSchema(format, schemaID);
+                    schemas.put(key, result);
+                }
             }
         }
         return result;
@@ -67,7 +74,19 @@ public abstract class SchemaManagerBase implements SchemaManager {
      */
     protected final Schema createSchema(final int format, final int schemaID,
             final Template<?>[] userTemplates, final int basicTemplateCount) {
-        final BasicTemplates basicTemplates = new BasicTemplates();
+        return createSchema(format, schemaID, userTemplates,
+                basicTemplateCount, null);
+    }
+
+    /**
+     * Creates and returns a new schema, given the user templates, the number
+     * of basic templates, and the template IDs that get the smallest wire
+     * IDs (see Schema.layout(int[])).
+     */
+    protected final Schema createSchema(final int format, final int schemaID,
+            final Template<?>[] userTemplates, final int basicTemplateCount,
+            final int[] layout) {
+        final BasicTemplates basicTemplates = BASIC_TEMPLATES;
         final Map<Class<?>, Template<?>> classToTemplate = new HashMap<Class<?>, Template<?>>();
         final Template<?>[] bt = basicTemplates
                 .getBasicTemplates(basicTemplateCount);
@@ -77,10 +96,15 @@ public abstract class SchemaManagerBase implements SchemaManager {
         System.arraycopy(userTemplates, 0, idToTemplate, bt.length,
                 userTemplates.length);
         for (int i = 0; i < idToTemplate.length; i++) {
-            final Template<?> template = idToTemplate[i];
+            Template<?> template = idToTemplate[i];
             if (template != null) {
                 Objects.requireNonNull(template.getType(), "idToTemplate[" + i
                         + "].getType()");
+                // Templates shared by schemas with different IDs are copied
+                if (((_Template) template).hasID() && (template.getID() != i)) {
+                    template = ((_Template) template).copy();
+                    idToTemplate[i] = template;
+                }
                 ((_Template) template).setID(i);
                 if (template.isMainTemplate()
                         && classToTemplate.put(template.getType(), template) != null) {
@@ -91,16 +115,19 @@ public abstract class SchemaManagerBase implements SchemaManager {
         }
         final List<Template<?>> fallBack = new ArrayList<Template<?>>();
         for (int i = 0; i < idToTemplate.length; i++) {
-            if (idToTemplate[i].isFallBackTemplate()) {
+            if ((idToTemplate[i] != null)
+                    && idToTemplate[i].isFallBackTemplate()) {
                 fallBack.add(idToTemplate[i]);
             }
         }
         final Template<?>[] fallbackTemplates = fallBack
                 .toArray(new Template<?>[fallBack.size()]);
         final Schema result = new Schema(format, schemaID, basicTemplates,
-                idToTemplate, classToTemplate, fallbackTemplates);
+                idToTemplate, classToTemplate, fallbackTemplates, layout);
         for (int i = 0; i < idToTemplate.length; i++) {
-            ((_Template) idToTemplate[i]).resolve(result);
+            if (idToTemplate[i] != null) {
+                ((_Template) idToTemplate[i]).resolve(result);
+            }
         }
         return result;
     }
@@ -22,9 +22,11 @@ import java.util.Objects;
 
 import com.blockwithme.msgpack.ObjectPacker;
 import com.blockwithme.msgpack.Packer;
+import com.blockwithme.msgpack.PostDeserListener;
 import com.blockwithme.msgpack.Unpacker;
 import com.blockwithme.msgpack.ValueType;
 import com.blockwithme.msgpack.schema.Schema;
+import com.blockwithme.msgpack.schema.Schema.ClassInfo;
 
 /**
  * Object template, for anything beyond primitive types.
@@ -95,6 +97,15 @@ public abstract class AbstractTemplate<T> implements Template<T>, _Template,
     private static <T> T readNewNonNullObject(final UnpackerContext context,
             final Template<T> template, final int size) throws IOException {
         final ArrayList<Object> previous = context.previous;
+        if (context.hasOption(Context.TREE_MODE)) {
+            // No back-references; only remember what needs postDeser()
+            final T result = template.readData(context,
+                    template.preCreate(size), size);
+            if (result instanceof PostDeserListener) {
+                previous.add(result);
+            }
+            return result;
+        }
         final int objID = previous.size();
         // pre-creation before read allows support for cycles.
         T result = template.preCreate(size);
@@ -108,15 +119,23 @@ public abstract class AbstractTemplate<T> implements Template<T>, _Template,
 
     /** Returns a previously read object.
      * @return */
-    private static Object readPrevious(final Unpacker unpacker,
-            final Template<?> template, final ArrayList<Object> previous)
-            throws IOException {
-        final int id = unpacker.readIndex();
-        if (id >= previous.size()) {
+    private static Object readPrevious(final UnpackerContext context,
+            final Template<?> template) throws IOException {
+        final ArrayList<Object> previous = context.previous;
+        final int ref = context.unpacker.readIndex();
+        final int id = context.hasOption(Context.RELATIVE_REFS) ? context.previousOffset
+                + previous.size() - 1 - ref
+                : ref;
+        final int index = id - context.previousOffset;
+        if (index < 0) {
+            throw new IllegalStateException("Object with ID " + id
+                    + " is outside the window");
+        }
+        if (index >= previous.size()) {
             throw new IllegalStateException("Object with ID " + id
                     + " not read yet");
         }
-        final Object result = previous.get(id);
+        final Object result = previous.get(index);
         if (result == null) {
             throw new IllegalStateException("Object with ID " + id
                     + " not (fully?) read yet");
@@ -134,16 +153,35 @@ public abstract class AbstractTemplate<T> implements Template<T>, _Template,
             final Template<T> template, int size,
             final boolean ifObjectArrayCanContainNullValue) throws IOException {
         final int fixedSize = template.getFixedSize();
+        boolean columns = false;
         if (template.isFinalOrPrimitiveArray() && (fixedSize > 0)
                 && !ifObjectArrayCanContainNullValue) {
+            // Only an array written by column has the extra marker.
+            columns = (size % fixedSize == 1) && (fixedSize > 1);
+            if (columns) {
+                context.unpacker.readNil();
+            }
             size /= fixedSize;
         }
         @SuppressWarnings("unchecked")
         // pre-creation before read allows support for cycles.
         final T[] result = (T[]) template.preCreateArray(1, size);
-        context.previous.add(result);
-        template.read1DArray(context, result, size,
-                ifObjectArrayCanContainNullValue);
+        if (!context.hasOption(Context.TREE_MODE)) {
+            context.previous.add(result);
+        }
+        if (columns) {
+            if (!(template instanceof AbstractTemplate)
+                    || !((AbstractTemplate<T>) template).supportsColumns()) {
+                throw new IllegalStateException("Array of " + template
+                        + " was written by column, but the template"
+                        + " cannot read columns");
+            }
+            ((AbstractTemplate<T>) template).readColumns(context, result,
+                    size);
+        } else {
+            template.read1DArray(context, result, size,
+                    ifObjectArrayCanContainNullValue);
+        }
         return result;
     }
 
@@ -154,7 +192,9 @@ public abstract class AbstractTemplate<T> implements Template<T>, _Template,
         @SuppressWarnings("unchecked")
         // pre-creation before read allows support for cycles.
         final T[][] result = (T[][]) template.preCreateArray(2, size);
-        context.previous.add(result);
+        if (!context.hasOption(Context.TREE_MODE)) {
+            context.previous.add(result);
+        }
         template.read2DArray(context, result, size);
         return result;
     }
@@ -166,7 +206,9 @@ public abstract class AbstractTemplate<T> implements Template<T>, _Template,
         @SuppressWarnings("unchecked")
         // pre-creation before read allows support for cycles.
         final T[][][] result = (T[][][]) template.preCreateArray(3, size);
-        context.previous.add(result);
+        if (!context.hasOption(Context.TREE_MODE)) {
+            context.previous.add(result);
+        }
         template.read3DArray(context, result, size);
         return result;
     }
@@ -180,7 +222,7 @@ public abstract class AbstractTemplate<T> implements Template<T>, _Template,
         final int size = unpacker.readArrayBegin();
         final int tidPlusDimension = unpacker.readIndex();
         // The template ID
-        final int tid = tidPlusDimension / 4;
+        final int tid = context.fromWire(tidPlusDimension / 4);
         // The array dimension (0 for normal objects)
         final int dimension = tidPlusDimension % 4;
         if (template != null) {
@@ -218,7 +260,7 @@ public abstract class AbstractTemplate<T> implements Template<T>, _Template,
         final Unpacker unpacker = context.unpacker;
         final int size = unpacker.readMapBegin();
         // We do not specify "dimensions" for "map" objects
-        final int tid = unpacker.readIndex();
+        final int tid = context.fromWire(unpacker.readIndex());
         if (template != null) {
             if (tid != template.getID()) {
                 throw new IllegalArgumentException("Expected: " + template
@@ -244,15 +286,19 @@ public abstract class AbstractTemplate<T> implements Template<T>, _Template,
             final Template<?> template,
             final boolean ifObjectArrayCanContainNullValue) throws IOException {
         final Unpacker unpacker = context.unpacker;
-        final ArrayList<Object> previous = context.previous;
         final ValueType type = unpacker.getNextType();
         // null?
         if (type == ValueType.NIL) {
+            unpacker.readNil();
             return null;
         }
         // previous object?
         if (type == ValueType.INTEGER) {
-            return readPrevious(unpacker, template, previous);
+            if (context.hasOption(Context.TREE_MODE)) {
+                throw new IllegalStateException(
+                        "Back-reference found in tree mode");
+            }
+            return readPrevious(context, template);
         }
         // New object
         if (type == ValueType.ARRAY) {
@@ -297,15 +343,14 @@ public abstract class AbstractTemplate<T> implements Template<T>, _Template,
             }
             if (template == null) {
                 // Discover template ...
-                Class<?> c = o.getClass();
-                depth = 0;
-                Class<?> cc;
-                while (c.isArray()
-                        && !(cc = c.getComponentType()).isPrimitive()) {
-                    depth++;
-                    c = cc;
+                final Class<?> c = o.getClass();
+                final ClassInfo info = context.getSchema().classInfo(c);
+                if (info.template == null) {
+                    throw new IllegalArgumentException("Template not found: "
+                            + c);
                 }
-                template = context.getTemplate(c);
+                template = info.template;
+                depth = info.depth;
                 if (o instanceof Packable) {
                     ((Packable<?>) o).setTemplate(template);
                 }
@@ -314,8 +359,31 @@ public abstract class AbstractTemplate<T> implements Template<T>, _Template,
         template = template.replaceSelf(o);
         // Check if new object
         final TrackingType tt = template.getTrackingType();
-        final int pos = (tt == TrackingType.DO_NOT_TRACK) ? -1
-                : context.tracker.track(o, (tt == TrackingType.EQUALITY));
+        final DedupPolicy policy = (tt == TrackingType.EQUALITY) ? context.dedupPolicy
+                : null;
+        final int pos;
+        if (context.hasOption(Context.TREE_MODE)) {
+            pos = -1;
+        } else if ((tt == TrackingType.DO_NOT_TRACK)
+                || ((policy != null) && !policy.shouldTrack(context, template,
+                        o))) {
+            // The reader counts it anyway
+            context.tracker.skip();
+            pos = -1;
+        } else if (policy == null) {
+            pos = context.tracker.track(o, (tt == TrackingType.EQUALITY));
+        } else {
+            if (policy.shouldRemember(context, template, o)) {
+                pos = context.tracker.track(o, true);
+            } else {
+                // Only a reference to an earlier copy is worth it
+                pos = context.tracker.find(o, true);
+                if (pos == -1) {
+                    context.tracker.skip();
+                }
+            }
+            policy.tracked(template, pos != -1);
+        }
         if (pos == -1) {
             // New Object!
             if (depth == -1) {
@@ -339,7 +407,11 @@ public abstract class AbstractTemplate<T> implements Template<T>, _Template,
             }
         } else {
             // Previous object
-            packer.writeIndex(pos);
+            if (context.hasOption(Context.RELATIVE_REFS)) {
+                packer.writeIndex(context.tracker.position() - 1 - pos);
+            } else {
+                packer.writeIndex(pos);
+            }
         }
     }
 
@@ -445,18 +517,24 @@ public abstract class AbstractTemplate<T> implements Template<T>, _Template,
         return id;
     }
 
-    /** Sets the ID. This can only be called once. */
+    /** Sets the ID. This can only be called once, or again with the same ID. */
     @Override
     public void setID(final int newID) {
         if (newID < 0) {
             throw new IllegalArgumentException("newID=" + newID);
         }
-        if (id >= 0) {
+        if ((id >= 0) && (id != newID)) {
             throw new IllegalStateException("id already set to " + id);
         }
         id = newID;
     }
 
+    /** Returns true, if the ID was set. */
+    @Override
+    public final boolean hasID() {
+        return id >= 0;
+    }
+
     /** Returns the type that is supported. */
     @Override
     public final Class<T> getType() {
@@ -529,20 +607,33 @@ public abstract class AbstractTemplate<T> implements Template<T>, _Template,
         return fixedSize;
     }
 
+    /** Returns the wire ID of this template, counting it if profiling. */
+    private int wireID(final PackerContext context) {
+        final int[] counts = context.templateCounts;
+        if (counts != null) {
+            counts[id]++;
+        }
+        return context.toWire(id);
+    }
+
     /** Writes the type ID. Not used by "map" (or raw) objects. */
-    private void writeID(final Packer packer, final int dimensions)
+    private void writeID(final PackerContext context, final int dimensions)
             throws IOException {
         // We encode both the actual template ID, and the "array dimension"
         // In the Id, to save space (hopefully!)
-        packer.writeIndex(4 * id + dimensions);
+        context.packer.writeIndex(4 * wireID(context) + dimensions);
     }
 
     /** Write an Object as a list/array. */
     private void writeList(final PackerContext context, final T v,
             final int size) throws IOException {
         final Packer packer = context.packer;
-        packer.writeArrayBegin(size + 1);
-        writeID(packer, 0);
+        if (size == UNKNOWN_SIZE) {
+            packer.writeArrayBegin();
+        } else {
+            packer.writeArrayBegin(size + 1);
+        }
+        writeID(context, 0);
         writeData(context, size, v);
         packer.writeArrayEnd(true);
     }
@@ -553,7 +644,7 @@ public abstract class AbstractTemplate<T> implements Template<T>, _Template,
         final Packer packer = context.packer;
         packer.writeMapBegin(size + 1);
         // Map entry key: we do not use "dimensions" for "map" objects
-        packer.writeIndex(id);
+        packer.writeIndex(wireID(context));
         // Map entry value
         writeMapHeaderValue(context, v, size);
         writeData(context, size, v);
@@ -585,18 +676,74 @@ public abstract class AbstractTemplate<T> implements Template<T>, _Template,
         final Packer packer = context.packer;
         // We store the objects "inline" therefore saving space, by not
         // wrapping them in sub-arrays.
-        packer.writeArrayBegin(v.length * fixedSize + 1);
-        writeID(packer, 1);
-        for (int i = 0; i < v.length; i++) {
-            final T t = v[i];
-            if (t == null) {
-                throw new IllegalStateException("v[" + i + "] was null!");
+        final boolean columns = isColumnar(context);
+        // A nil after the ID marks the column layout, so the reader does not
+        // depend on its own options or template to know which layout it is.
+        packer.writeArrayBegin(v.length * fixedSize + (columns ? 2 : 1));
+        writeID(context, 1);
+        if (columns) {
+            packer.writeNil();
+            for (int i = 0; i < v.length; i++) {
+                if (v[i] == null) {
+                    throw new IllegalStateException("v[" + i + "] was null!");
+                }
+            }
+            for (int field = 0; field < fixedSize; field++) {
+                writeColumn(context, field, v);
+            }
+        } else {
+            for (int i = 0; i < v.length; i++) {
+                final T t = v[i];
+                if (t == null) {
+                    throw new IllegalStateException("v[" + i + "] was null!");
+                }
+                writeData(context, fixedSize, t);
             }
-            writeData(context, fixedSize, t);
         }
         packer.writeArrayEnd(true);
     }
 
+    /**
+     * Are fixed-size arrays of this template written column by column?
+     * With a single field, both layouts are the same, so we use rows.
+     */
+    private boolean isColumnar(final Context context) {
+        return context.hasOption(Context.COLUMNAR) && (fixedSize > 1)
+                && supportsColumns();
+    }
+
+    /** Reads the columns of an array written by column. */
+    private void readColumns(final UnpackerContext context,
+            final T[] preCreated, final int size) throws IOException {
+        for (int i = 0; i < size; i++) {
+            preCreated[i] = preCreate(fixedSize);
+        }
+        for (int field = 0; field < fixedSize; field++) {
+            readColumn(context, field, preCreated, size);
+        }
+    }
+
+    /**
+     * Returns true, if this fixed-size template implements writeColumn() and
+     * readColumn(), so that arrays of it can use the COLUMNAR option.
+     * preCreate() must then return the instances to be filled by readColumn().
+     */
+    protected boolean supportsColumns() {
+        return false;
+    }
+
+    /** Writes the given field (0 to fixedSize-1) of all (non-null) values. */
+    protected void writeColumn(final PackerContext context, final int field,
+            final T[] v) throws IOException {
+        throw new IllegalStateException("Must be implemented!");
+    }
+
+    /** Reads the given field (0 to fixedSize-1) into all the pre-created values. */
+    protected void readColumn(final UnpackerContext context, final int field,
+            final T[] values, final int size) throws IOException {
+        throw new IllegalStateException("Must be implemented!");
+    }
+
     /** Writes an array of anything */
     private void writeArrayDataAsRandomObjects(final PackerContext context,
             final Object[] v) throws IOException {
@@ -611,9 +758,10 @@ public abstract class AbstractTemplate<T> implements Template<T>, _Template,
             throws IOException {
         final Packer packer = context.packer;
         packer.writeArrayBegin(v.length + 1);
-        writeID(packer, 1);
+        writeID(context, 1);
         for (int i = 0; i < v.length; i++) {
-            writeNonArrayObject(context, v[i]);
+            // Tracked, since read1DArray() reads them with readObject()
+            writeObject(context, v[i], this, true);
         }
         packer.writeArrayEnd(true);
     }
@@ -623,7 +771,7 @@ public abstract class AbstractTemplate<T> implements Template<T>, _Template,
             final T[] v) throws IOException {
         final Packer packer = context.packer;
         packer.writeArrayBegin(v.length + 1);
-        writeID(packer, 1);
+        writeID(context, 1);
         writeArrayDataAsRandomObjects(context, v);
         packer.writeArrayEnd(true);
     }
@@ -657,7 +805,7 @@ public abstract class AbstractTemplate<T> implements Template<T>, _Template,
             packer.writeNil();
         } else {
             packer.writeArrayBegin(v.length + 1);
-            writeID(packer, 2);
+            writeID(context, 2);
             if (isFinalOrPrimitiveArray) {
                 for (int i = 0; i < v.length; i++) {
                     write1DArray(context, v[i], canContainNullValue);
@@ -679,7 +827,7 @@ public abstract class AbstractTemplate<T> implements Template<T>, _Template,
             packer.writeNil();
         } else {
             packer.writeArrayBegin(v.length + 1);
-            writeID(packer, 3);
+            writeID(context, 3);
             if (isFinalOrPrimitiveArray) {
                 for (int i = 0; i < v.length; i++) {
                     write2DArray(context, v[i], canContainNullValue);
@@ -717,7 +865,8 @@ public abstract class AbstractTemplate<T> implements Template<T>, _Template,
     public final void read1DArray(final UnpackerContext context,
             final T[] preCreated, final int size,
             final boolean canContainNullValue) throws IOException {
-        if (isFinalOrPrimitiveArray && (fixedSize > 0) && !canContainNullValue) {
+        if (isFinalOrPrimitiveArray && (fixedSize > 0)
+                && !canContainNullValue) {
             // A primitive array will not have a fixed size.
             for (int i = 0; i < size; i++) {
                 preCreated[i] = readData(context, preCreate(fixedSize),
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2013 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.msgpack.templates;
+
+import java.util.Arrays;
+
+import com.blockwithme.msgpack.impl.AbstractPacker;
+
+/**
+ * A DedupPolicy that does not remember new values that are not bigger than a
+ * back-reference to them would be, and stops tracking the values of a
+ * template for a while, when too few of them were found again.
+ *
+ * Encoded sizes are estimated, for Strings and primitive wrappers only.
+ * Other values are always bigger than a reference.
+ *
+ * @author monster
+ */
+public class AdaptiveDedupPolicy implements DedupPolicy {
+
+    /** The default number of tracked values, between hit rate checks. */
+    public static final int DEFAULT_SAMPLE_SIZE = 256;
+
+    /** The default minimum hit rate, in percents. */
+    public static final int DEFAULT_MIN_HIT_PERCENT = 5;
+
+    /** The number of values of a template not tracked, after a bad sample. */
+    private static final int SKIP_SAMPLES = 16;
+
+    /** The number of tracked values, between hit rate checks. */
+    private final int sampleSize;
+
+    /** The minimum hit rate, in percents. */
+    private final int minHitPercent;
+
+    /** Per template ID: values tracked in the current sample. */
+    private int[] samples = new int[64];
+
+    /** Per template ID: values found again in the current sample. */
+    private int[] hits = new int[64];
+
+    /** Per template ID: values still not to track. */
+    private int[] skipping = new int[64];
+
+    /** Creates an AdaptiveDedupPolicy with the default settings. */
+    public AdaptiveDedupPolicy() {
+        this(DEFAULT_SAMPLE_SIZE, DEFAULT_MIN_HIT_PERCENT);
+    }
+
+    /** Creates an AdaptiveDedupPolicy. 0 minHitPercent disables sampling. */
+    public AdaptiveDedupPolicy(final int sampleSize, final int minHitPercent) {
+        if (sampleSize <= 0) {
+            throw new IllegalArgumentException("sampleSize: " + sampleSize);
+        }
+        if ((minHitPercent < 0) || (minHitPercent > 100)) {
+            throw new IllegalArgumentException("minHitPercent: "
+                    + minHitPercent);
+        }
+        this.sampleSize = sampleSize;
+        this.minHitPercent = minHitPercent;
+    }
+
+    /** Returns the encoded size of an integer value. */
+    private static int intSize(final long v) {
+        if ((v >= -32) && (v < 128)) {
+            return 1;
+        }
+        if ((v >= -128) && (v < 256)) {
+            return 2;
+        }
+        if ((v >= -32768) && (v < 65536)) {
+            return 3;
+        }
+        if ((v >= Integer.MIN_VALUE) && (v <= 0xFFFFFFFFL)) {
+            return 5;
+        }
+        return 9;
+    }
+
+    /**
+     * Returns the estimated encoded size of a value, with its (array and
+     * template ID) header, or Integer.MAX_VALUE if unknown.
+     */
+    protected int encodedSize(final Object value) {
+        final int payload;
+        if (value instanceof String) {
+            // At least one byte per char
+            final int len = ((String) value).length();
+            payload = ((len < 32) ? 1 : ((len < 65536) ? 3 : 5)) + len;
+        } else if ((value instanceof Integer) || (value instanceof Long)
+                || (value instanceof Short) || (value instanceof Byte)) {
+            payload = intSize(((Number) value).longValue());
+        } else if (value instanceof Character) {
+            payload = intSize((Character) value);
+        } else if (value instanceof Boolean) {
+            payload = 1;
+        } else if (value instanceof Float) {
+            payload = 5;
+        } else if (value instanceof Double) {
+            payload = 9;
+        } else {
+            return Integer.MAX_VALUE;
+        }
+        return 2 + payload;
+    }
+
+    /**
+     * Returns the (minimum) encoded size of a back-reference, to a value
+     * tracked now.
+     */
+    protected int referenceSize(final PackerContext context) {
+        if (context.hasOption(Context.RELATIVE_REFS)) {
+            // Depends on when it will be referenced
+            return 1;
+        }
+        return intSize(context.tracker.position() - AbstractPacker.INDEX_OFFSET);
+    }
+
+    /** Makes sure the arrays can hold the given template ID. */
+    private void ensure(final int id) {
+        if (id >= samples.length) {
+            final int length = Math.max(id + 1, samples.length * 2);
+            samples = Arrays.copyOf(samples, length);
+            hits = Arrays.copyOf(hits, length);
+            skipping = Arrays.copyOf(skipping, length);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.msgpack.templates.DedupPolicy#shouldTrack(com.blockwithme.msgpack.templates.PackerContext, com.blockwithme.msgpack.templates.Template, java.lang.Object)
+     */
+    @Override
+    public boolean shouldTrack(final PackerContext context,
+            final Template<?> template, final Object value) {
+        final int id = template.getID();
+        ensure(id);
+        if (skipping[id] > 0) {
+            skipping[id]--;
+            return false;
+        }
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.msgpack.templates.DedupPolicy#shouldRemember(com.blockwithme.msgpack.templates.PackerContext, com.blockwithme.msgpack.templates.Template, java.lang.Object)
+     */
+    @Override
+    public boolean shouldRemember(final PackerContext context,
+            final Template<?> template, final Object value) {
+        return encodedSize(value) > referenceSize(context);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.msgpack.templates.DedupPolicy#tracked(com.blockwithme.msgpack.templates.Template, boolean)
+     */
+    @Override
+    public void tracked(final Template<?> template, final boolean found) {
+        if (minHitPercent == 0) {
+            return;
+        }
+        final int id = template.getID();
+        ensure(id);
+        if (found) {
+            hits[id]++;
+        }
+        if (++samples[id] == sampleSize) {
+            if (hits[id] * 100 < sampleSize * minHitPercent) {
+                // Not worth it; try again later
+                skipping[id] = sampleSize * SKIP_SAMPLES;
+            }
+            samples[id] = 0;
+            hits[id] = 0;
+        }
+    }
+}
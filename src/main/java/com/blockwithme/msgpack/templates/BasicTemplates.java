@@ -29,10 +29,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import com.blockwithme.msgpack.Helper;
 import com.blockwithme.msgpack.ObjectPacker;
 import com.blockwithme.msgpack.ObjectUnpacker;
 import com.blockwithme.msgpack.Packer;
 import com.blockwithme.msgpack.Unpacker;
+import com.blockwithme.msgpack.ValueType;
 import com.blockwithme.msgpack.impl.ByteArraySlice;
 
 /**
@@ -161,9 +163,15 @@ public class BasicTemplates {
             return preCreated;
         }
 
-        /** Computes the size. */
+        /**
+         * Computes the size. If the packer allows it, the size is left
+         * unknown, so that it always matches what the iteration returns.
+         */
         @Override
         public final int getSpaceRequired(final PackerContext context, final C v) {
+            if (context.packer.supportsUnknownSizes()) {
+                return UNKNOWN_SIZE;
+            }
             return v.size();
         }
 
@@ -267,9 +275,13 @@ public class BasicTemplates {
         }
     }
 
-    /** Never instantiated. */
+    /**
+     * Creates the basic templates. They are immutable once their IDs are set,
+     * which are the same for all schemas, so one instance can be shared.
+     */
     public BasicTemplates() {
-        // NOP
+        registerTypeID(CharSequence.class);
+        ALL = allList.toArray(new Template[allList.size()]);
     }
 
     /** Registers a non-serialisable type. */
@@ -281,7 +293,7 @@ public class BasicTemplates {
     private final List<Template<?>> allList = new ArrayList<Template<?>>();
 
     /** All templates. */
-    private Template<?>[] ALL;
+    private final Template<?>[] ALL;
 
     /**
      * The Object template.
@@ -348,7 +360,8 @@ public class BasicTemplates {
             } else {
                 // A serializable class
                 final int depth = AbstractTemplate.getArrayDepth(value);
-                context.packer.writeIndex(t.getID() * 4 + depth);
+                context.packer.writeIndex(context.toWire(t.getID()) * 4
+                        + depth);
             }
         }
 
@@ -368,7 +381,7 @@ public class BasicTemplates {
             }
             // A serialisable class
             final int id = context.unpacker.readIndex();
-            return context.getTemplate(id / 4).getType();
+            return context.getTemplate(context.fromWire(id / 4)).getType();
         }
     };
 
@@ -691,6 +704,10 @@ public class BasicTemplates {
         public void writeData(final PackerContext context, final int size,
                 final int[] value) throws IOException {
             final Packer p = context.packer;
+            if (context.hasOption(Context.PACKED_ARRAYS)) {
+                Helper.writePackedIntArray(p, value);
+                return;
+            }
             for (final int a : value) {
                 p.writeInt(a);
             }
@@ -700,16 +717,17 @@ public class BasicTemplates {
         public int[] readData(final UnpackerContext context,
                 final int[] preCreated, final int size) throws IOException {
             final Unpacker u = context.unpacker;
-            final int[] result = new int[size];
-            for (int i = 0; i < size; i++) {
-                result[i] = u.readInt();
+            if ((size == 1) && (u.getNextType() == ValueType.RAW)) {
+                return Helper.readPackedIntArray(u);
             }
+            final int[] result = new int[size];
+            u.readInts(result, 0, size);
             return result;
         }
 
         @Override
         public int getSpaceRequired(final PackerContext context, final int[] v) {
-            return v.length;
+            return context.hasOption(Context.PACKED_ARRAYS) ? 1 : v.length;
         }
     };
 
@@ -720,6 +738,10 @@ public class BasicTemplates {
         public void writeData(final PackerContext context, final int size,
                 final long[] value) throws IOException {
             final Packer p = context.packer;
+            if (context.hasOption(Context.PACKED_ARRAYS)) {
+                Helper.writePackedLongArray(p, value);
+                return;
+            }
             for (final long a : value) {
                 p.writeLong(a);
             }
@@ -729,16 +751,17 @@ public class BasicTemplates {
         public long[] readData(final UnpackerContext context,
                 final long[] preCreated, final int size) throws IOException {
             final Unpacker u = context.unpacker;
-            final long[] result = new long[size];
-            for (int i = 0; i < size; i++) {
-                result[i] = u.readLong();
+            if ((size == 1) && (u.getNextType() == ValueType.RAW)) {
+                return Helper.readPackedLongArray(u);
             }
+            final long[] result = new long[size];
+            u.readLongs(result, 0, size);
             return result;
         }
 
         @Override
         public int getSpaceRequired(final PackerContext context, final long[] v) {
-            return v.length;
+            return context.hasOption(Context.PACKED_ARRAYS) ? 1 : v.length;
         }
     };
 
@@ -749,6 +772,10 @@ public class BasicTemplates {
         public void writeData(final PackerContext context, final int size,
                 final float[] value) throws IOException {
             final Packer p = context.packer;
+            if (context.hasOption(Context.PACKED_ARRAYS)) {
+                Helper.writePackedFloatArray(p, value);
+                return;
+            }
             for (final float a : value) {
                 p.writeFloat(a);
             }
@@ -758,6 +785,9 @@ public class BasicTemplates {
         public float[] readData(final UnpackerContext context,
                 final float[] preCreated, final int size) throws IOException {
             final Unpacker u = context.unpacker;
+            if ((size == 1) && (u.getNextType() == ValueType.RAW)) {
+                return Helper.readPackedFloatArray(u);
+            }
             final float[] result = new float[size];
             for (int i = 0; i < size; i++) {
                 result[i] = u.readFloat();
@@ -767,7 +797,7 @@ public class BasicTemplates {
 
         @Override
         public int getSpaceRequired(final PackerContext context, final float[] v) {
-            return v.length;
+            return context.hasOption(Context.PACKED_ARRAYS) ? 1 : v.length;
         }
     };
 
@@ -778,6 +808,10 @@ public class BasicTemplates {
         public void writeData(final PackerContext context, final int size,
                 final double[] value) throws IOException {
             final Packer p = context.packer;
+            if (context.hasOption(Context.PACKED_ARRAYS)) {
+                Helper.writePackedDoubleArray(p, value);
+                return;
+            }
             for (final double a : value) {
                 p.writeDouble(a);
             }
@@ -787,17 +821,18 @@ public class BasicTemplates {
         public double[] readData(final UnpackerContext context,
                 final double[] preCreated, final int size) throws IOException {
             final Unpacker u = context.unpacker;
-            final double[] result = new double[size];
-            for (int i = 0; i < size; i++) {
-                result[i] = u.readDouble();
+            if ((size == 1) && (u.getNextType() == ValueType.RAW)) {
+                return Helper.readPackedDoubleArray(u);
             }
+            final double[] result = new double[size];
+            u.readDoubles(result, 0, size);
             return result;
         }
 
         @Override
         public int getSpaceRequired(final PackerContext context,
                 final double[] v) {
-            return v.length;
+            return context.hasOption(Context.PACKED_ARRAYS) ? 1 : v.length;
         }
     };
 
@@ -805,7 +840,8 @@ public class BasicTemplates {
      * The Byte array slice template.
      *
      * The generics cannot be used here, because we receive/write ByteArraySlice,
-     * but return/read byte[]
+     * but return/read byte[]; in zero-copy mode, we return a ByteArraySlice
+     * pointing into the input instead.
      */
     @SuppressWarnings({ "unchecked", "rawtypes" })
     public final Template BYTE_ARRAY_SLICE = new MyAbstractTemplate(null,
@@ -825,7 +861,11 @@ public class BasicTemplates {
         @Override
         public Object readData(final UnpackerContext context,
                 final Object preCreated, final int size) throws IOException {
-            return context.unpacker.readByteArray();
+            final Unpacker unpacker = context.unpacker;
+            if (unpacker.isZeroCopy()) {
+                return unpacker.readByteArraySlice();
+            }
+            return unpacker.readByteArray();
         }
     };
 
@@ -863,14 +903,10 @@ public class BasicTemplates {
     };
 
     /** Returns count basic templates. */
-    public synchronized Template<?>[] getBasicTemplates(final int count) {
+    public Template<?>[] getBasicTemplates(final int count) {
         if (count < 0) {
             throw new IllegalArgumentException("count: " + count);
         }
-        if (ALL == null) {
-            registerTypeID(CharSequence.class);
-            ALL = allList.toArray(new Template[allList.size()]);
-        }
         if (count == ALL.length) {
             return ALL;
         }
@@ -32,6 +32,58 @@ import com.blockwithme.msgpack.schema.SchemaManager;
  */
 public class Context {
 
+    /**
+     * The number of low bits of the format index in the stream header, that
+     * contain the format itself. The higher bits contain the stream options.
+     */
+    public static final int FORMAT_BITS = 8;
+
+    /** The mask for the format itself, in the format index. */
+    public static final int FORMAT_MASK = (1 << FORMAT_BITS) - 1;
+
+    /**
+     * Stream option: the object graph is a tree. No object is tracked, and
+     * there are no back-references, so shared objects are written multiple
+     * times, and cycles cause a StackOverflowError.
+     */
+    public static final int TREE_MODE = 1;
+
+    /**
+     * Stream option: back-references are limited to the last "window"
+     * objects. The window size follows the schema ID in the stream header.
+     * Cycles must be closed within the window, otherwise older objects are
+     * written again, forever.
+     */
+    public static final int WINDOW = 2;
+
+    /**
+     * Stream option: int, long, float and double arrays are written in packed
+     * form, as a single raw. Readers accept both forms, with or without it.
+     */
+    public static final int PACKED_ARRAYS = 4;
+
+    /**
+     * Stream option: the stream is a session of many messages, sharing a
+     * single header. Each message starts with a boolean, which is true if the
+     * object tracking was reset before the message.
+     */
+    public static final int SESSION = 8;
+
+    /**
+     * Stream option: back-references are written as the distance from the
+     * last tracked object (0 for the last one) rather than as its absolute
+     * position, so that references to recent objects are small fixnums.
+     */
+    public static final int RELATIVE_REFS = 16;
+
+    /**
+     * Stream option: arrays of final fixed-size objects, whose template
+     * supports it, are written column by column: the first field of every
+     * object, then the second field of every object, and so on. Each such
+     * array is marked on the wire, so the reader does not need this option.
+     */
+    public static final int COLUMNAR = 32;
+
     /** Is this a required field? (Currently unused) */
     public boolean required;
 
@@ -41,6 +93,19 @@ public class Context {
     /** The schema version for the current (de)serialisation. */
     public int schemaID = -1;
 
+    /**
+     * The stream options for the current (de)serialisation. Must be set before
+     * creating the ObjectPacker; they are read from the stream header when
+     * unpacking.
+     */
+    public int options;
+
+    /**
+     * The back-reference window size, for the WINDOW option. Setting it to a
+     * positive value when packing sets the WINDOW option.
+     */
+    public int window;
+
     /** The schema manager */
     private final SchemaManager schemaManager;
 
@@ -58,6 +123,22 @@ public class Context {
         schemaManager = theSchemaManager;
     }
 
+    /** Returns true, if the given stream option is set. */
+    public final boolean hasOption(final int option) {
+        return (options & option) != 0;
+    }
+
+    /** Returns the format index of the stream header. */
+    public final int formatIndex() {
+        return (getSchema().format & FORMAT_MASK) | (options << FORMAT_BITS);
+    }
+
+    /** Sets format and options from the format index of the stream header. */
+    public final void formatIndex(final int formatIndex) {
+        format = formatIndex & FORMAT_MASK;
+        options = formatIndex >>> FORMAT_BITS;
+    }
+
     /** The schema */
     public final Schema getSchema() {
         if (schema == null) {
@@ -66,6 +147,19 @@ public class Context {
         return schema;
     }
 
+    /**
+     * Returns the schema, after replacing the cached one if the format or
+     * schema ID changed. Called once per stream header, so that getSchema()
+     * stays a plain null check.
+     */
+    public final Schema refreshSchema() {
+        if ((schema != null)
+                && ((schema.schema != schemaID) || (schema.format != format))) {
+            schema = null;
+        }
+        return getSchema();
+    }
+
     /** Returns the Template<?> for an ID, or fails. */
     public Template<?> getTemplate(final int id) {
         try {
@@ -79,6 +173,16 @@ public class Context {
         throw new IllegalArgumentException("Template not found for id: " + id);
     }
 
+    /** Returns the wire ID of a template ID, in the current schema. */
+    public final int toWire(final int id) {
+        return getSchema().toWire(id);
+    }
+
+    /** Returns the template ID of a wire ID, in the current schema. */
+    public final int fromWire(final int wire) {
+        return getSchema().fromWire(wire);
+    }
+
     /** Un-array a class. */
     private Class<?> unArray(final Class<?> cls) {
         if (cls == null) {
@@ -96,16 +200,10 @@ public class Context {
     /** Returns the ID for a Class, or null if not found. */
     @SuppressWarnings("unchecked")
     public <E> Template<E> findTemplate(final Class<E> cls) {
-        final Template<E> result = (Template<E>) getSchema().classToTemplate
-                .get(unArray(cls));
-        if (result == null) {
-            for (final Template<?> f : getSchema().fallbackTemplates) {
-                if (f.getType().isAssignableFrom(cls)) {
-                    return (Template<E>) f;
-                }
-            }
+        if (cls == null) {
+            throw new IllegalArgumentException("Class cannot be null");
         }
-        return result;
+        return (Template<E>) getSchema().classInfo(cls).template;
     }
 
     /** Returns the ID for a Class. */
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2013 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.msgpack.templates;
+
+/**
+ * Decides which values of EQUALITY-tracked templates are tracked, while
+ * packing. Values that are not tracked are not hashed, and are written again
+ * every time, instead of as back-references. Values that are looked up, but
+ * not remembered, can still be written as references to earlier copies, but
+ * do not become reference targets themselves.
+ *
+ * Implementations can be stateful; they are used by a single PackerContext.
+ *
+ * @author monster
+ */
+public interface DedupPolicy {
+
+    /** Returns true, if the (non-null) value should be looked up. */
+    boolean shouldTrack(final PackerContext context,
+            final Template<?> template, final Object value);
+
+    /**
+     * Returns true, if the (non-null) value, which was looked up, should be
+     * remembered if new.
+     */
+    boolean shouldRemember(final PackerContext context,
+            final Template<?> template, final Object value);
+
+    /**
+     * Called after a value was looked up; found is true if it was written
+     * before, so that a back-reference was written.
+     */
+    void tracked(final Template<?> template, final boolean found);
+}
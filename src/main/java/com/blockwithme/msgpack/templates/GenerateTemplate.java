@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2013 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.msgpack.templates;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Requests the generation of a template for the annotated class, at compile
+ * time, by the msgpack-processor annotation processor.
+ *
+ * The generated template is called &lt;BinaryName&gt;$$Template, is defined
+ * in the same package as the class, and has a public no-argument
+ * constructor. The processor also generates a registry class, returning all
+ * the generated templates, in template ID order, for BasicSchemaManager.
+ * Templates are ordered by firstSchemaIntroduction, and then by class name,
+ * so that types introduced in later schemas do not change the IDs of the
+ * existing types.
+ *
+ * The class must have a non-private no-argument constructor, and the listed
+ * fields must be non-private, non-final and non-static.
+ *
+ * @author monster
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface GenerateTemplate {
+
+    /** fixedSize value meaning "the number of fields". */
+    int FIELD_COUNT = -2;
+
+    /** The serialized fields, in serialization order. */
+    String[] fields();
+
+    /** First schema introduction. */
+    int firstSchemaIntroduction() default 0;
+
+    /** The ObjectType; only ARRAY and MAP are supported. */
+    ObjectType objectType() default ObjectType.ARRAY;
+
+    /** The TrackingType. */
+    TrackingType trackingType() default TrackingType.IDENTITY;
+
+    /**
+     * The fixed size. A negative value other than FIELD_COUNT means the size
+     * is not fixed, and that reading accepts fewer (ARRAY) or unknown (MAP)
+     * fields, written by other versions of the class.
+     */
+    int fixedSize() default FIELD_COUNT;
+}
@@ -41,9 +41,21 @@ public class PackerContext extends Context {
     /** The ObjectTracker */
     public final ObjectTracker tracker = new ObjectTracker();
 
+    /**
+     * Decides which EQUALITY-tracked values are tracked. Null means all of
+     * them (the default).
+     */
+    public DedupPolicy dedupPolicy;
+
     /** The Packer. */
     public Packer packer;
 
     /** The Object Packer. */
     public ObjectPacker objectPacker;
+
+    /**
+     * If not null, counts the objects written per template ID, to compute a
+     * layout with Schema.layout(int[]). Must be as long as the ID table.
+     */
+    public int[] templateCounts;
 }
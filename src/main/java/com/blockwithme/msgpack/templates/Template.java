@@ -105,6 +105,13 @@ public interface Template<T> {
     void write3DArray(final PackerContext context, final T[][][] v,
             final boolean canContainNullValue) throws IOException;
 
+    /**
+     * Can be returned by getSpaceRequired() for ARRAY and RAW objects, if
+     * context.packer.supportsUnknownSizes(). writeData() then receives it as
+     * size, and can write any number of values.
+     */
+    int UNKNOWN_SIZE = -1;
+
     /**
      * Returns the number of values to write for this (non-null) value.
      * If the preferred container type is a map, this number must be even, so
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2013 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.msgpack.templates;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import javassist.CannotCompileException;
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.CtNewConstructor;
+import javassist.LoaderClassPath;
+import javassist.NotFoundException;
+
+/**
+ * Generates templates at runtime, using javassist, for "plain" classes.
+ *
+ * The generated template extends AbstractTemplate, and writes the instance
+ * fields as an ARRAY object of fixed size, accessing the fields directly.
+ * Primitive fields use the Packer/Unpacker directly, and all other fields go
+ * through the ObjectPacker/ObjectUnpacker. Fields are sorted by declaring
+ * class (super-class first) and then by name, so that the format does not
+ * depend on the JVM.
+ *
+ * The class must have a non-private no-argument constructor, and all its
+ * non-static non-transient fields must be non-private and non-final. The
+ * generated class is defined in the same package and ClassLoader as the
+ * type, so package-private fields are supported too.
+ *
+ * @author monster
+ */
+public final class TemplateGenerator {
+
+    /** Suffix of the generated template class names. */
+    private static final String SUFFIX = "$$Template";
+
+    /** The constructors of the generated template classes, by type. */
+    private static final ClassValue<Constructor<?>> GENERATED = new ClassValue<Constructor<?>>() {
+        @Override
+        protected Constructor<?> computeValue(final Class<?> type) {
+            try {
+                return generateClass(type, fields(type)).getConstructor(
+                        String.class, Class.class, int.class,
+                        ObjectType.class, TrackingType.class, int.class);
+            } catch (final NoSuchMethodException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /** Orders the fields by name. */
+    private static final Comparator<Field> BY_NAME = new Comparator<Field>() {
+        @Override
+        public int compare(final Field f1, final Field f2) {
+            return f1.getName().compareTo(f2.getName());
+        }
+    };
+
+    private TemplateGenerator() {
+        // NOP
+    }
+
+    /**
+     * Generates a new template instance for the given type, supported
+     * since firstSchemaIntroduction.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Template<T> generate(final Class<T> type,
+            final int firstSchemaIntroduction) {
+        final Constructor<?> constructor = GENERATED.get(type);
+        try {
+            return (Template<T>) constructor.newInstance(null, type,
+                    firstSchemaIntroduction, ObjectType.ARRAY,
+                    TrackingType.IDENTITY, fields(type).size());
+        } catch (final Exception e) {
+            throw new IllegalStateException(
+                    "Could not create generated template for " + type, e);
+        }
+    }
+
+    /** Generates new template instances for the given types. */
+    @SuppressWarnings("rawtypes")
+    public static Template[] generate(final int firstSchemaIntroduction,
+            final Class<?>... types) {
+        final Template[] result = new Template[types.length];
+        for (int i = 0; i < types.length; i++) {
+            result[i] = generate(types[i], firstSchemaIntroduction);
+        }
+        return result;
+    }
+
+    /** Returns the serialized fields of type, in serialization order. */
+    private static List<Field> fields(final Class<?> type) {
+        if (type.isInterface() || type.isArray() || type.isPrimitive()
+                || Modifier.isAbstract(type.getModifiers())) {
+            throw new IllegalArgumentException("Not a concrete class: " + type);
+        }
+        final List<Class<?>> hierarchy = new ArrayList<Class<?>>();
+        for (Class<?> c = type; c != Object.class; c = c.getSuperclass()) {
+            hierarchy.add(0, c);
+        }
+        final List<Field> result = new ArrayList<Field>();
+        for (final Class<?> c : hierarchy) {
+            final Field[] declared = c.getDeclaredFields();
+            Arrays.sort(declared, BY_NAME);
+            for (final Field f : declared) {
+                final int mod = f.getModifiers();
+                if (Modifier.isStatic(mod) || Modifier.isTransient(mod)
+                        || f.isSynthetic()) {
+                    continue;
+                }
+                if (Modifier.isPrivate(mod) || Modifier.isFinal(mod)) {
+                    throw new IllegalArgumentException("Field " + f
+                            + " cannot be private or final");
+                }
+                if (!Modifier.isPublic(mod)
+                        && (c.getPackage() != type.getPackage())) {
+                    throw new IllegalArgumentException("Field " + f
+                            + " not accessible from package of " + type);
+                }
+                result.add(f);
+            }
+        }
+        return result;
+    }
+
+    /** Returns the Java source name of a class. */
+    private static String sourceName(final Class<?> c) {
+        if (c.isArray()) {
+            return sourceName(c.getComponentType()) + "[]";
+        }
+        return c.getName();
+    }
+
+    /** Returns the Packer/Unpacker method suffix for a primitive type. */
+    private static String primitive(final Class<?> c) {
+        final String name = c.getName();
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+
+    /**
+     * Generates the template class. ClassValue can compute the same value in
+     * two threads concurrently, so we reuse a class already defined.
+     */
+    private static synchronized Class<?> generateClass(final Class<?> type,
+            final List<Field> fields) {
+        final String typeName = sourceName(type);
+        final String className = type.getName() + SUFFIX;
+        try {
+            return Class.forName(className, false, type.getClassLoader());
+        } catch (final ClassNotFoundException e) {
+            // Not generated yet
+        }
+        final String simpleName = className.substring(className
+                .lastIndexOf('.') + 1);
+
+        final StringBuilder write = new StringBuilder();
+        write.append("public void writeData(").append(
+                PackerContext.class.getName());
+        write.append(" context, int size, Object value)");
+        write.append(" throws java.io.IOException {\n");
+        write.append(typeName).append(" v = (").append(typeName)
+                .append(") value;\n");
+
+        final StringBuilder read = new StringBuilder();
+        read.append("public Object readData(").append(
+                UnpackerContext.class.getName());
+        read.append(" context, Object preCreated, int size)");
+        read.append(" throws java.io.IOException {\n");
+        read.append(typeName).append(" v;\n");
+        read.append("if (preCreated == null) { v = new ").append(typeName)
+                .append("(); } else { v = (").append(typeName)
+                .append(") preCreated; }\n");
+
+        for (final Field f : fields) {
+            final Class<?> ft = f.getType();
+            final String name = f.getName();
+            if (ft.isPrimitive()) {
+                write.append("context.packer.write").append(primitive(ft))
+                        .append("(v.").append(name).append(");\n");
+                read.append("v.").append(name)
+                        .append(" = context.unpacker.read")
+                        .append(primitive(ft)).append("();\n");
+            } else {
+                write.append("context.objectPacker.writeObject(v.")
+                        .append(name).append(");\n");
+                read.append("v.").append(name).append(" = (")
+                        .append(sourceName(ft))
+                        .append(") context.objectUnpacker.readObject();\n");
+            }
+        }
+        write.append("}");
+        read.append("return v;\n}");
+
+        final String preCreate = "public Object preCreate(int size) { return new "
+                + typeName + "(); }";
+        final String constructor = "public " + simpleName
+                + "(String name, Class type, int firstSchemaIntroduction, "
+                + ObjectType.class.getName() + " objectType, "
+                + TrackingType.class.getName()
+                + " trackingType, int fixedSize) {"
+                + " super($1, $2, $3, $4, $5, $6); }";
+
+        final ClassPool pool = new ClassPool(true);
+        pool.appendClassPath(new ClassClassPath(AbstractTemplate.class));
+        if (type.getClassLoader() != null) {
+            pool.appendClassPath(new LoaderClassPath(type.getClassLoader()));
+        }
+        try {
+            final CtClass cc = pool.makeClass(className,
+                    pool.get(AbstractTemplate.class.getName()));
+            cc.addConstructor(CtNewConstructor.make(constructor, cc));
+            cc.addMethod(CtMethod.make(write.toString(), cc));
+            cc.addMethod(CtMethod.make(read.toString(), cc));
+            cc.addMethod(CtMethod.make(preCreate, cc));
+            final Class<?> result = cc.toClass(type);
+            cc.detach();
+            return result;
+        } catch (final CannotCompileException | NotFoundException e) {
+            throw new IllegalStateException(
+                    "Could not generate template for " + type, e);
+        }
+    }
+}
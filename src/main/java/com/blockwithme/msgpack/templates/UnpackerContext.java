@@ -16,8 +16,10 @@
 package com.blockwithme.msgpack.templates;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import com.blockwithme.msgpack.ObjectUnpacker;
+import com.blockwithme.msgpack.PostDeserListener;
 import com.blockwithme.msgpack.Unpacker;
 import com.blockwithme.msgpack.schema.SchemaManager;
 
@@ -42,9 +44,32 @@ public class UnpackerContext extends Context {
     /** Tracks the previously returned objects. */
     public final ArrayList<Object> previous = new ArrayList<Object>(256);
 
+    /** The ID of the first object in previous; non-zero in WINDOW mode. */
+    public int previousOffset;
+
     /** The Unpacker. */
     public Unpacker unpacker;
 
     /** The Object Unpacker. */
     public ObjectUnpacker objectUnpacker;
+
+    /**
+     * In WINDOW mode, forgets the previous objects that the packer will not
+     * refer to anymore. Their postDeser() is called now, rather than on
+     * close(). Must only be called between top-level objects.
+     */
+    public void trimPrevious() {
+        final int size = previous.size();
+        if ((window > 0) && (size > 2 * window)) {
+            final int evict = size - window;
+            final List<Object> evicted = previous.subList(0, evict);
+            for (final Object o : evicted) {
+                if (o instanceof PostDeserListener) {
+                    ((PostDeserListener) o).postDeser(this);
+                }
+            }
+            evicted.clear();
+            previousOffset += evict;
+        }
+    }
 }
@@ -24,10 +24,19 @@ import com.blockwithme.msgpack.schema.Schema;
  */
 public interface _Template {
 
-    /** Sets the ID. This can only be called once. */
+    /**
+     * Sets the ID. This can only be called once, or again with the same ID,
+     * when the template is shared by multiple schemas.
+     */
     void setID(final int newID);
 
-    /** Called after the Schema was created, but before the serialisation starts. */
+    /** Returns true, if the ID was set. */
+    boolean hasID();
+
+    /**
+     * Called after the Schema was created, but before the serialisation
+     * starts. Called once for every schema sharing the template.
+     */
     void resolve(final Schema schema);
 
     /** Returns a copy of the template */
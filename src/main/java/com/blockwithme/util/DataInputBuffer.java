@@ -82,13 +82,15 @@ public class DataInputBuffer implements DataInput {
         if (length < 0) {
             throw new IllegalArgumentException("length: " + length);
         }
-        if (length > buff.length) {
-            throw new IllegalArgumentException("length: " + length
-                    + " > buff.length: " + buff.length);
+        if (offset < 0 || offset > buff.length - length) {
+            throw new IllegalArgumentException("offset: " + offset
+                    + " + length: " + length + " > buff.length: "
+                    + buff.length);
         }
         this.buff = buff;
         this.read = offset;
-        this.length = length;
+        // length is used as the end index
+        this.length = offset + length;
     }
 
     /**
@@ -14,55 +14,279 @@
  * limitations under the License.
  */
 package com.blockwithme.util;
-
-import java.util.HashMap;
-import java.util.IdentityHashMap;
+import java.util.Arrays;
 
 /**
  * ObjectTracker keep track of object, to make sure that multiple occurrences
  * are detected. Depending on the value of the isImmutable flag, we will use
  * either Object equality, if true, or Object identity, if false.
  *
- * TODO I expect the performance is bad. We want something faster.
+ * It uses two open-addressing (linear probing) hash tables, with the
+ * positions stored in int arrays, so that no entry object or Integer is
+ * created per tracked object. clear() only touches the used slots.
+ *
+ * Optionally, only the objects within a window of the last N positions are
+ * remembered; older objects are forgotten, and so will be tracked again as
+ * new objects.
  *
  * @author monster
  */
 public class ObjectTracker {
+    /** The default initial capacity. */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    /** One hash table. */
+    private static final class Table {
+        /** Uses equality instead of identity? */
+        private final boolean equality;
+
+        /** The keys; null means free. */
+        private Object[] keys;
+
+        /** The positions of the keys. */
+        private int[] values;
+
+        /** The used slots, in insertion order; invalid after a remove. */
+        private int[] used;
+
+        /** The number of keys. */
+        private int size;
+
+        /** Is used invalid? */
+        private boolean dirty;
+
+        Table(final boolean equality, final int capacity) {
+            this.equality = equality;
+            allocate(capacity);
+        }
+
+        /** Allocates empty arrays, for at least capacity keys. */
+        private void allocate(final int capacity) {
+            // Load factor is at most 0.5
+            int length = 16;
+            while (length < 2 * capacity) {
+                length <<= 1;
+            }
+            keys = new Object[length];
+            values = new int[length];
+            used = new int[length / 2];
+            size = 0;
+            dirty = false;
+        }
+
+        /** Returns the first slot to probe for o. */
+        private int slot(final Object o) {
+            int h = equality ? o.hashCode() : System.identityHashCode(o);
+            // Spread the bits, as we only use the low ones
+            h = (h ^ (h >>> 16)) * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & (keys.length - 1);
+        }
+
+        /** Returns the position of o, or -1 after adding it at pos. */
+        int track(final Object o, final int pos) {
+            final Object[] k = keys;
+            final int mask = k.length - 1;
+            int i = slot(o);
+            Object key;
+            while ((key = k[i]) != null) {
+                if ((key == o) || (equality && key.equals(o))) {
+                    return values[i];
+                }
+                i = (i + 1) & mask;
+            }
+            if (size == used.length) {
+                grow();
+                return track(o, pos);
+            }
+            k[i] = o;
+            values[i] = pos;
+            used[size++] = i;
+            return -1;
+        }
+
+        /** Returns the position of o, or -1 if absent. */
+        int find(final Object o) {
+            final Object[] k = keys;
+            final int mask = k.length - 1;
+            int i = slot(o);
+            Object key;
+            while ((key = k[i]) != null) {
+                if ((key == o) || (equality && key.equals(o))) {
+                    return values[i];
+                }
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        /** Removes exactly this key instance, if present. */
+        void remove(final Object o) {
+            final Object[] k = keys;
+            final int mask = k.length - 1;
+            int i = slot(o);
+            Object key;
+            while ((key = k[i]) != o) {
+                if (key == null) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            // Backward-shift deletion, so that no tombstone is needed
+            int j = i;
+            while ((key = k[j = (j + 1) & mask]) != null) {
+                final int home = slot(key);
+                // Move key, unless its home slot is cyclically in ]i,j]
+                if ((j > i) ? ((home <= i) || (home > j))
+                        : ((home <= i) && (home > j))) {
+                    k[i] = key;
+                    values[i] = values[j];
+                    i = j;
+                }
+            }
+            k[i] = null;
+            size--;
+            dirty = true;
+        }
+
+        /** Doubles the capacity. */
+        private void grow() {
+            final Object[] oldKeys = keys;
+            final int[] oldValues = values;
+            allocate(2 * used.length);
+            for (int s = 0; s < oldKeys.length; s++) {
+                if (oldKeys[s] != null) {
+                    track(oldKeys[s], oldValues[s]);
+                }
+            }
+        }
+
+        /** Removes all keys. */
+        void clear() {
+            final Object[] k = keys;
+            final int[] u = used;
+            if (dirty || (size > k.length / 8)) {
+                Arrays.fill(k, null);
+            } else {
+                for (int j = 0; j < size; j++) {
+                    k[u[j]] = null;
+                }
+            }
+            size = 0;
+            dirty = false;
+        }
+    }
+
     /** Stores the non-String objects. */
-    private final IdentityHashMap<Object, Integer> normal = new IdentityHashMap<Object, Integer>();
+    private final Table normal;
 
     /** Stores the String objects. */
-    private final HashMap<Object, Integer> immutable = new HashMap<Object, Integer>();
+    private final Table immutable;
+
+    /** The number of tracked objects. */
+    private int position;
+
+    /** The window objects, by position modulo the window size, or null. */
+    private Object[] window;
+
+    /** Was the window object at the same index immutable? */
+    private boolean[] windowImmutable;
+
+    /** Creates an ObjectTracker with the default initial capacity. */
+    public ObjectTracker() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** Creates an ObjectTracker with the given initial capacity. */
+    public ObjectTracker(final int initialCapacity) {
+        normal = new Table(false, initialCapacity);
+        immutable = new Table(true, initialCapacity);
+    }
+
+    /**
+     * Only remembers the objects within the last size positions. 0 means no
+     * limit. Clears the tracker.
+     */
+    public void setWindow(final int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size: " + size);
+        }
+        clear();
+        if (size == 0) {
+            window = null;
+            windowImmutable = null;
+        } else {
+            window = new Object[size];
+            windowImmutable = new boolean[size];
+        }
+    }
+
+    /** Returns the window size, or 0 if unlimited. */
+    public int getWindow() {
+        return (window == null) ? 0 : window.length;
+    }
 
     /** Tracks an object. Returns -1 if new or null, otherwise the insertion position. */
     public int track(final Object o, final boolean isImmutable) {
         if (o == null) {
             return -1;
         }
-        if (isImmutable) {
-            final Integer pos = immutable.get(o);
-            if (pos == null) {
-                immutable.put(o, position());
-                return -1;
+        final int result = (isImmutable ? immutable : normal).track(o,
+                position);
+        if (result == -1) {
+            if (window != null) {
+                final int index = position % window.length;
+                final Object evicted = window[index];
+                if (evicted != null) {
+                    (windowImmutable[index] ? immutable : normal)
+                            .remove(evicted);
+                }
+                window[index] = o;
+                windowImmutable[index] = isImmutable;
             }
-            return pos;
+            position++;
         }
-        final Integer pos = normal.get(o);
-        if (pos == null) {
-            normal.put(o, position());
+        return result;
+    }
+
+    /**
+     * Returns the insertion position of an object, or -1 if null or not
+     * tracked. Does not track it.
+     */
+    public int find(final Object o, final boolean isImmutable) {
+        if (o == null) {
             return -1;
         }
-        return pos;
+        return (isImmutable ? immutable : normal).find(o);
+    }
+
+    /**
+     * Skips a position, for an object that is not tracked, but that the
+     * reader counts anyway.
+     */
+    public void skip() {
+        if (window != null) {
+            final int index = position % window.length;
+            final Object evicted = window[index];
+            if (evicted != null) {
+                (windowImmutable[index] ? immutable : normal).remove(evicted);
+                window[index] = null;
+            }
+        }
+        position++;
     }
 
     /** Clears the tracker. */
     public void clear() {
         normal.clear();
         immutable.clear();
+        position = 0;
+        if (window != null) {
+            Arrays.fill(window, null);
+        }
     }
 
     /** Return the position of the last new object. Positions start at 1. */
     public int position() {
-        return normal.size() + immutable.size();
+        return position;
     }
 }
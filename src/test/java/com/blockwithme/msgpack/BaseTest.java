@@ -18,6 +18,7 @@ package com.blockwithme.msgpack;
 import java.io.IOException;
 
 import com.blockwithme.msgpack.impl.MessagePackPacker;
+import com.blockwithme.msgpack.impl.MessagePackUnpacker;
 import com.blockwithme.msgpack.impl.ObjectPackerImpl;
 import com.blockwithme.msgpack.schema.BasicSchemaManager;
 import com.blockwithme.msgpack.schema.SchemaManager;
@@ -59,6 +60,17 @@ public abstract class BaseTest {
 
     protected ObjectPackerImpl newObjectPacker(final DataOutputBuffer dob,
             final int schema) throws IOException {
+        return newObjectPacker(dob, schema, 0);
+    }
+
+    protected ObjectPackerImpl newObjectPacker(final DataOutputBuffer dob,
+            final int schema, final int options) throws IOException {
+        final PackerContext pc = newPackerContext(schema);
+        pc.options = options;
+        return new ObjectPackerImpl(newPacker(dob), pc);
+    }
+
+    protected PackerContext newPackerContext(final int schema) {
         final PackerContext pc = new PackerContext(new BasicSchemaManager(
                 extended(schema)) {
             @Override
@@ -67,7 +79,7 @@ public abstract class BaseTest {
             }
         });
         pc.schemaID = schema;
-        return new ObjectPackerImpl(newPacker(dob), pc);
+        return pc;
     }
 
     protected void dumpOP(final DataOutputBuffer dob) {
@@ -107,4 +119,8 @@ public abstract class BaseTest {
         final int size = dob.size();
         return new DataInputBuffer(bytes, 0, size);
     }
+
+    protected MessagePackUnpacker newUnpacker(final DataOutputBuffer dob) {
+        return new MessagePackUnpacker(toDataInputBuffer(dob));
+    }
 }
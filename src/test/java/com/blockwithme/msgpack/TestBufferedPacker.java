@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2013 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.msgpack;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.blockwithme.msgpack.impl.BufferedMessagePackPacker;
+import com.blockwithme.msgpack.impl.MessagePackPacker;
+import com.blockwithme.msgpack.impl.MessagePackUnpacker;
+import com.blockwithme.msgpack.impl.ObjectPackerImpl;
+import com.blockwithme.msgpack.impl.ObjectUnpackerImpl;
+import com.blockwithme.msgpack.templates.UnpackerContext;
+import com.blockwithme.util.DataOutputBuffer;
+
+/**
+ * Runs all the simple tests again, with the BufferedMessagePackPacker.
+ *
+ * @author monster
+ */
+public class TestBufferedPacker extends TestSimple {
+
+    @Override
+    protected MessagePackPacker newPacker(final DataOutputBuffer dob) {
+        // Small buffer, so that spilling is exercised too.
+        return new BufferedMessagePackPacker(dob, 16);
+    }
+
+    @Test
+    public void testSameBytes() throws Exception {
+        final DataOutputBuffer expected = newDataOutputBuffer();
+        final DataOutputBuffer actual = newDataOutputBuffer();
+        final Packer[] packers = new Packer[] {
+                new MessagePackPacker(expected),
+                new BufferedMessagePackPacker(actual, 16) };
+        final long[] values = new long[] { 0, 1, -1, -32, -33, 127, 128, 255,
+                256, -128, -129, 65535, 65536, -32768, -32769,
+                Integer.MAX_VALUE, Integer.MIN_VALUE, 1L << 32,
+                Long.MIN_VALUE, Long.MAX_VALUE };
+        final byte[] blob = new byte[100];
+        Arrays.fill(blob, (byte) 42);
+        for (final Packer p : packers) {
+            p.writeArrayBegin(values.length * 3 + 5);
+            for (final long v : values) {
+                p.writeLong(v);
+                p.writeInt((int) v);
+                p.writeShort((short) v);
+            }
+            p.writeDouble(Math.PI);
+            p.writeFloat(1.5f);
+            p.writeBoolean(true);
+            p.writeNil();
+            p.write(blob);
+            p.writeArrayEnd();
+            p.close();
+        }
+        Assert.assertEquals(expected.size(), actual.size());
+        Assert.assertTrue(Arrays.equals(
+                Arrays.copyOf(expected.buffer(), expected.size()),
+                Arrays.copyOf(actual.buffer(), actual.size())));
+    }
+
+    @Test
+    public void testUTF8() throws Exception {
+        final StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            big.append("abc\u00e9\u20ac\ud83d\ude00");
+        }
+        final String[] strings = new String[] { "", "ascii", "caf\u00e9",
+                "\u20ac100", "smile \ud83d\ude00", "bad \ud83d end",
+                "bad \ude00", big.toString() };
+        for (final String str : strings) {
+            final byte[] expected = str.getBytes("UTF-8");
+            final DataOutputBuffer[] dobs = new DataOutputBuffer[] {
+                    newDataOutputBuffer(), newDataOutputBuffer() };
+            final Packer[] packers = new Packer[] {
+                    new MessagePackPacker(dobs[0]),
+                    new BufferedMessagePackPacker(dobs[1], 16) };
+            for (int i = 0; i < packers.length; i++) {
+                packers[i].writeUTF(str);
+                packers[i].close();
+                final byte[] actual = newUnpacker(dobs[i]).readByteArray();
+                Assert.assertTrue(str, Arrays.equals(expected, actual));
+            }
+        }
+    }
+
+    @Test
+    public void testUnknownSizes() throws Exception {
+        final DataOutputBuffer dob = newDataOutputBuffer();
+        final BufferedMessagePackPacker packer = new BufferedMessagePackPacker(
+                dob, 16);
+        packer.writeInt(1);
+        packer.writeArrayBegin();
+        for (int i = 0; i < 100; i++) {
+            packer.writeInt(i);
+        }
+        packer.writeMapBegin();
+        packer.writeUTF("key");
+        packer.writeRawBegin();
+        for (int i = 0; i < 50; i++) {
+            packer.dataOutput().writeByte(i);
+        }
+        packer.writeRawEnd();
+        packer.writeMapEnd();
+        packer.writeArrayEnd();
+        packer.writeArrayBegin();
+        packer.writeArrayEnd();
+        packer.close();
+
+        final MessagePackUnpacker mpu = newUnpacker(dob);
+        Assert.assertEquals(1, mpu.readInt());
+        Assert.assertEquals(101, mpu.readArrayBegin());
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(i, mpu.readInt());
+        }
+        Assert.assertEquals(1, mpu.readMapBegin());
+        Assert.assertEquals("key", mpu.readUTF());
+        final byte[] raw = mpu.readByteArray();
+        Assert.assertEquals(50, raw.length);
+        Assert.assertEquals(49, raw[49]);
+        mpu.readMapEnd(true);
+        mpu.readArrayEnd(true);
+        Assert.assertEquals(0, mpu.readArrayBegin());
+        mpu.readArrayEnd(true);
+    }
+
+    @Test
+    public void testCollectionOfUnknownSize() throws Exception {
+        Assert.assertFalse(new MessagePackPacker(newDataOutputBuffer())
+                .supportsUnknownSizes());
+        final DataOutputBuffer dob = newDataOutputBuffer();
+        final ObjectPackerImpl packer = newObjectPacker(dob);
+        Assert.assertTrue(packer.packer().supportsUnknownSizes());
+        final ArrayList<String> list = new ArrayList<String>();
+        list.add("a");
+        list.add("b");
+        list.add("c");
+        packer.writeObject(list);
+        packer.packer().close();
+        // Patched 32-bit header: 3 values, plus the type ID
+        final byte[] bytes = Arrays.copyOf(dob.buffer(), dob.size());
+        boolean found = false;
+        for (int i = 0; !found && (i + 5 <= bytes.length); i++) {
+            found = Arrays.equals(new byte[] { (byte) 0xdd, 0, 0, 0, 4 },
+                    Arrays.copyOfRange(bytes, i, i + 5));
+        }
+        Assert.assertTrue(found);
+        final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(
+                newUnpacker(dob), new UnpackerContext(newSchemaManager(42)));
+        Assert.assertEquals(list, oui.readObject());
+    }
+}
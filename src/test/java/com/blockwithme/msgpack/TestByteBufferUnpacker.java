@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2013 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.msgpack;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.blockwithme.msgpack.impl.ByteArraySlice;
+import com.blockwithme.msgpack.impl.ByteBufferMessagePackUnpacker;
+import com.blockwithme.msgpack.impl.FeedUnpacker;
+import com.blockwithme.msgpack.impl.MessagePackPacker;
+import com.blockwithme.msgpack.impl.MessagePackScanner;
+import com.blockwithme.msgpack.impl.MessagePackUnpacker;
+import com.blockwithme.msgpack.impl.accept.IntAccept;
+import com.blockwithme.util.DataOutputBuffer;
+
+/**
+ * Runs all the simple tests again, with the ByteBufferMessagePackUnpacker,
+ * reading from a direct ByteBuffer.
+ *
+ * @author monster
+ */
+public class TestByteBufferUnpacker extends TestSimple {
+
+    @Override
+    protected MessagePackUnpacker newUnpacker(final DataOutputBuffer dob) {
+        final ByteBuffer bb = ByteBuffer.allocateDirect(dob.size());
+        bb.put(dob.buffer(), 0, dob.size());
+        bb.flip();
+        return new ByteBufferMessagePackUnpacker(bb);
+    }
+
+    @Test
+    public void testZeroCopy() throws Exception {
+        final DataOutputBuffer dob = newDataOutputBuffer();
+        final MessagePackPacker packer = newPacker(dob);
+        final byte[] bytes = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
+        packer.write(bytes);
+        packer.write(bytes);
+        packer.write(bytes);
+        packer.close();
+        final byte[] input = Arrays.copyOf(dob.buffer(), dob.size());
+        final ByteBufferMessagePackUnpacker mpu = new ByteBufferMessagePackUnpacker(
+                input);
+        mpu.setZeroCopy(true);
+
+        final ByteBuffer bb = mpu.readByteBuffer();
+        Assert.assertTrue(bb.isReadOnly());
+        Assert.assertEquals(ByteBuffer.wrap(bytes), bb);
+
+        final ByteArraySlice slice = mpu.readByteArraySlice();
+        Assert.assertSame(input, slice.o);
+        Assert.assertEquals(bytes.length, slice.len);
+        Assert.assertEquals(bytes[0], input[slice.off]);
+
+        Assert.assertEquals(bytes.length, mpu.readRawBegin());
+        final ByteBuffer first = mpu.readPartialByteBuffer(4);
+        final ByteBuffer second = mpu.readPartialByteBuffer(6);
+        mpu.readRawEnd();
+        Assert.assertTrue(second.isReadOnly());
+        Assert.assertEquals(ByteBuffer.wrap(bytes, 0, 4), first);
+        Assert.assertEquals(ByteBuffer.wrap(bytes, 4, 6), second);
+        Assert.assertEquals(0, mpu.remaining());
+    }
+
+    @Test
+    public void testFeedUnpacker() throws Exception {
+        final DataOutputBuffer dob = newDataOutputBuffer();
+        final MessagePackPacker packer = newPacker(dob);
+        final char[] chars = new char[100];
+        Arrays.fill(chars, 'x');
+        final String text = new String(chars);
+        packer.writeInt(-70000);
+        packer.writeLong(Long.MIN_VALUE);
+        packer.writeUTF(text);
+        packer.writeArrayBegin(3);
+        packer.writeDouble(1.5);
+        packer.writeNil();
+        packer.writeArrayBegin(0);
+        packer.writeArrayEnd();
+        packer.writeArrayEnd();
+        packer.close();
+        final byte[] input = Arrays.copyOf(dob.buffer(), dob.size());
+
+        // First value, through an Accept, in one go
+        final FeedUnpacker feed = new FeedUnpacker();
+        final IntAccept ia = new IntAccept();
+        final ByteBuffer all = ByteBuffer.wrap(input);
+        Assert.assertTrue(feed.feed(all, ia));
+        Assert.assertEquals(-70000, ia.value);
+
+        // Other values, one byte at a time
+        feed.setKeepBytes(true);
+        final ByteBuffer values = ByteBuffer.allocate(input.length);
+        int count = 0;
+        for (int i = all.position(); i < input.length; i++) {
+            final ByteBuffer chunk = ByteBuffer.wrap(input, i, 1);
+            if (feed.feed(chunk, null)) {
+                values.put(feed.value());
+                count++;
+            } else {
+                Assert.assertFalse(feed.isIdle());
+            }
+            Assert.assertFalse(chunk.hasRemaining());
+        }
+        Assert.assertEquals(3, count);
+        Assert.assertTrue(feed.isIdle());
+        values.flip();
+        final ByteBufferMessagePackUnpacker mpu = new ByteBufferMessagePackUnpacker(
+                values);
+        Assert.assertEquals(Long.MIN_VALUE, mpu.readLong());
+        Assert.assertEquals(text, mpu.readUTF());
+        Assert.assertEquals(3, mpu.readArrayBegin());
+        Assert.assertEquals(1.5, mpu.readDouble());
+        mpu.readNil();
+        Assert.assertEquals(0, mpu.readArrayBegin());
+        mpu.readArrayEnd();
+        mpu.readArrayEnd();
+        Assert.assertEquals(0, mpu.remaining());
+    }
+
+    @Test
+    public void testScanner() throws Exception {
+        final DataOutputBuffer dob = newDataOutputBuffer();
+        final MessagePackPacker packer = newPacker(dob);
+        packer.writeMapBegin(2);
+        packer.writeUTF("key");
+        packer.write(new byte[300]);
+        packer.writeInt(-1);
+        packer.writeArrayBegin(2);
+        packer.writeLong(Long.MAX_VALUE);
+        packer.writeFloat(1.5f);
+        packer.writeArrayEnd();
+        packer.writeMapEnd();
+        packer.writeBoolean(true);
+        packer.close();
+        final byte[] input = Arrays.copyOf(dob.buffer(), dob.size());
+
+        final ByteBufferMessagePackUnpacker mpu = new ByteBufferMessagePackUnpacker(
+                input);
+        mpu.skip();
+        final int end = mpu.position();
+        Assert.assertEquals(end, MessagePackScanner.scan(input, 0,
+                input.length));
+        Assert.assertEquals(input.length,
+                MessagePackScanner.scan(input, end, input.length - end));
+        for (int len = 0; len < end; len++) {
+            Assert.assertEquals(MessagePackScanner.INCOMPLETE,
+                    MessagePackScanner.scan(input, 0, len));
+        }
+        final ByteBuffer direct = ByteBuffer.allocateDirect(input.length);
+        direct.put(input).flip();
+        Assert.assertEquals(end, MessagePackScanner.scan(direct));
+        direct.limit(end - 1);
+        Assert.assertEquals(MessagePackScanner.INCOMPLETE,
+                MessagePackScanner.scan(direct));
+        Assert.assertEquals(0, direct.position());
+        // Lengths are big-endian, whatever the buffer byte order
+        direct.limit(input.length);
+        direct.order(ByteOrder.LITTLE_ENDIAN);
+        Assert.assertEquals(end, MessagePackScanner.scan(direct));
+    }
+}
@@ -17,6 +17,7 @@ package com.blockwithme.msgpack;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 
@@ -24,16 +25,23 @@ import junit.framework.Assert;
 
 import org.junit.Test;
 
+import com.blockwithme.msgpack.impl.MessagePackPacker;
 import com.blockwithme.msgpack.impl.MessagePackUnpacker;
+import com.blockwithme.msgpack.impl.ObjectCodec;
 import com.blockwithme.msgpack.impl.ObjectPackerImpl;
 import com.blockwithme.msgpack.impl.ObjectUnpackerImpl;
+import com.blockwithme.msgpack.schema.BasicSchemaManager;
+import com.blockwithme.msgpack.schema.Schema;
+import com.blockwithme.msgpack.schema.Schema.ClassInfo;
+import com.blockwithme.msgpack.schema.SchemaManager;
 import com.blockwithme.msgpack.templates.AbstractTemplate;
+import com.blockwithme.msgpack.templates.AdaptiveDedupPolicy;
+import com.blockwithme.msgpack.templates.Context;
 import com.blockwithme.msgpack.templates.ObjectType;
 import com.blockwithme.msgpack.templates.PackerContext;
 import com.blockwithme.msgpack.templates.Template;
 import com.blockwithme.msgpack.templates.TrackingType;
 import com.blockwithme.msgpack.templates.UnpackerContext;
-import com.blockwithme.util.DataInputBuffer;
 import com.blockwithme.util.DataOutputBuffer;
 
 /**
@@ -62,6 +70,14 @@ public class TestSimple extends BaseTest {
         public int f2;
     }
 
+    /** An object that is never tracked. */
+    private static final class TestUntracked {
+        public int value;
+    }
+
+    /** Does the TestFixed template of the next schema support columns? */
+    private boolean fixedColumns = true;
+
     @Override
     @SuppressWarnings("rawtypes")
     protected Template[] extended(final int schema) {
@@ -122,6 +138,40 @@ public class TestSimple extends BaseTest {
                         result.v2 = u.readBoolean();
                         return result;
                     }
+
+                    @Override
+                    public TestFixed preCreate(final int size) {
+                        return new TestFixed();
+                    }
+
+                    @Override
+                    protected boolean supportsColumns() {
+                        return fixedColumns;
+                    }
+
+                    @Override
+                    protected void writeColumn(final PackerContext context,
+                            final int field, final TestFixed[] v)
+                            throws IOException {
+                        final Packer p = context.packer;
+                        for (final TestFixed t : v) {
+                            p.writeBoolean((field == 0) ? t.v1 : t.v2);
+                        }
+                    }
+
+                    @Override
+                    protected void readColumn(final UnpackerContext context,
+                            final int field, final TestFixed[] values,
+                            final int size) throws IOException {
+                        final Unpacker u = context.unpacker;
+                        for (int i = 0; i < size; i++) {
+                            if (field == 0) {
+                                values[i].v1 = u.readBoolean();
+                            } else {
+                                values[i].v2 = u.readBoolean();
+                            }
+                        }
+                    }
                 },
                 new AbstractTemplate<TestMap>(null, TestMap.class, 1,
                         ObjectType.MAP, TrackingType.IDENTITY, -1) {
@@ -174,6 +224,26 @@ public class TestSimple extends BaseTest {
                             final TestMap v) {
                         return (v.f1 ? 1 : 0) + (v.f2 == 0 ? 0 : 1);
                     }
+                },
+                new AbstractTemplate<TestUntracked>(null, TestUntracked.class,
+                        1, ObjectType.ARRAY, TrackingType.DO_NOT_TRACK, 1) {
+
+                    @Override
+                    public void writeData(final PackerContext context,
+                            final int size, final TestUntracked v)
+                            throws IOException {
+                        context.packer.writeInt(v.value);
+                    }
+
+                    @Override
+                    public TestUntracked readData(
+                            final UnpackerContext context,
+                            final TestUntracked preCreated, final int size)
+                            throws IOException {
+                        final TestUntracked result = new TestUntracked();
+                        result.value = context.unpacker.readInt();
+                        return result;
+                    }
                 } };
     }
 
@@ -185,8 +255,7 @@ public class TestSimple extends BaseTest {
         packer.packer().writeInt(INT_VALUE);
         packer.packer().close();
         dumpOP(dob);
-        final DataInputBuffer dib = toDataInputBuffer(dob);
-        final MessagePackUnpacker mpu = new MessagePackUnpacker(dib);
+        final MessagePackUnpacker mpu = newUnpacker(dob);
         final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(mpu,
                 new UnpackerContext(newSchemaManager(42)));
 
@@ -209,8 +278,7 @@ public class TestSimple extends BaseTest {
         packer.packer().writeInt(INT_VALUE);
         packer.packer().close();
         dumpOP(dob);
-        final DataInputBuffer dib = toDataInputBuffer(dob);
-        final MessagePackUnpacker mpu = new MessagePackUnpacker(dib);
+        final MessagePackUnpacker mpu = newUnpacker(dob);
         final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(mpu,
                 new UnpackerContext(newSchemaManager(42)));
 
@@ -230,8 +298,7 @@ public class TestSimple extends BaseTest {
         packer.packer().writeInt(INT_VALUE);
         packer.packer().close();
         dumpOP(dob);
-        final DataInputBuffer dib = toDataInputBuffer(dob);
-        final MessagePackUnpacker mpu = new MessagePackUnpacker(dib);
+        final MessagePackUnpacker mpu = newUnpacker(dob);
         final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(mpu,
                 new UnpackerContext(newSchemaManager(42)));
 
@@ -250,8 +317,7 @@ public class TestSimple extends BaseTest {
         packer.packer().writeInt(INT_VALUE);
         packer.packer().close();
         dumpOP(dob);
-        final DataInputBuffer dib = toDataInputBuffer(dob);
-        final MessagePackUnpacker mpu = new MessagePackUnpacker(dib);
+        final MessagePackUnpacker mpu = newUnpacker(dob);
         final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(mpu,
                 new UnpackerContext(newSchemaManager(42)));
 
@@ -268,8 +334,7 @@ public class TestSimple extends BaseTest {
         packer.writeObject(42L);
         packer.packer().close();
         dumpOP(dob);
-        final DataInputBuffer dib = toDataInputBuffer(dob);
-        final MessagePackUnpacker mpu = new MessagePackUnpacker(dib);
+        final MessagePackUnpacker mpu = newUnpacker(dob);
         final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(mpu,
                 new UnpackerContext(newSchemaManager(42)));
 
@@ -287,8 +352,7 @@ public class TestSimple extends BaseTest {
         packer.packer().writeInt(INT_VALUE);
         packer.packer().close();
         dumpOP(dob);
-        final DataInputBuffer dib = toDataInputBuffer(dob);
-        final MessagePackUnpacker mpu = new MessagePackUnpacker(dib);
+        final MessagePackUnpacker mpu = newUnpacker(dob);
         final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(mpu,
                 new UnpackerContext(newSchemaManager(42)));
 
@@ -320,8 +384,7 @@ public class TestSimple extends BaseTest {
         packer.packer().writeInt(INT_VALUE);
         packer.packer().close();
         dumpOP(dob);
-        final DataInputBuffer dib = toDataInputBuffer(dob);
-        final MessagePackUnpacker mpu = new MessagePackUnpacker(dib);
+        final MessagePackUnpacker mpu = newUnpacker(dob);
         final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(mpu,
                 new UnpackerContext(newSchemaManager(42)));
 
@@ -341,6 +404,28 @@ public class TestSimple extends BaseTest {
         Assert.assertEquals(INT_VALUE, oui.unpacker().readInt());
     }
 
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    @Test
+    public void testArrayListWithNull() throws Exception {
+        final DataOutputBuffer dob = newDataOutputBuffer();
+        final ObjectPackerImpl packer = newObjectPacker(dob);
+        final ArrayList al = new ArrayList();
+        al.add(null);
+        al.add("hello world");
+        packer.writeObject(al);
+        packer.packer().writeInt(INT_VALUE);
+        packer.packer().close();
+        dumpOP(dob);
+        final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(
+                newUnpacker(dob), new UnpackerContext(newSchemaManager(42)));
+
+        final ArrayList arrayList = (ArrayList) oui.readObject();
+        Assert.assertEquals(2, arrayList.size());
+        Assert.assertNull(arrayList.get(0));
+        Assert.assertEquals("hello world", arrayList.get(1));
+        Assert.assertEquals(INT_VALUE, oui.unpacker().readInt());
+    }
+
     @SuppressWarnings({ "rawtypes", "unchecked" })
     @Test
     public void testHashSetClassString() throws Exception {
@@ -353,8 +438,7 @@ public class TestSimple extends BaseTest {
         packer.packer().writeInt(INT_VALUE);
         packer.packer().close();
         dumpOP(dob);
-        final DataInputBuffer dib = toDataInputBuffer(dob);
-        final MessagePackUnpacker mpu = new MessagePackUnpacker(dib);
+        final MessagePackUnpacker mpu = newUnpacker(dob);
         final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(mpu,
                 new UnpackerContext(newSchemaManager(42)));
 
@@ -379,8 +463,7 @@ public class TestSimple extends BaseTest {
         packer.packer().writeInt(INT_VALUE);
         packer.packer().close();
         dumpOP(dob);
-        final DataInputBuffer dib = toDataInputBuffer(dob);
-        final MessagePackUnpacker mpu = new MessagePackUnpacker(dib);
+        final MessagePackUnpacker mpu = newUnpacker(dob);
         final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(mpu,
                 new UnpackerContext(newSchemaManager(42)));
 
@@ -399,8 +482,7 @@ public class TestSimple extends BaseTest {
         final ObjectPackerImpl packer = newObjectPacker(dob);
         packer.writeObject(o);
         packer.packer().close();
-        final DataInputBuffer dib = toDataInputBuffer(dob);
-        final MessagePackUnpacker mpu = new MessagePackUnpacker(dib);
+        final MessagePackUnpacker mpu = newUnpacker(dob);
         final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(mpu,
                 new UnpackerContext(newSchemaManager(42)));
         final Object copy = oui.readObject();
@@ -449,8 +531,7 @@ public class TestSimple extends BaseTest {
         packer.writeObject(new Object[][] { array1, array2 });
         packer.packer().close();
         dumpOP(dob);
-        final DataInputBuffer dib = toDataInputBuffer(dob);
-        final MessagePackUnpacker mpu = new MessagePackUnpacker(dib);
+        final MessagePackUnpacker mpu = newUnpacker(dob);
         final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(mpu,
                 new UnpackerContext(newSchemaManager(42)));
 
@@ -481,8 +562,7 @@ public class TestSimple extends BaseTest {
         packer.writeObject(new Object[][][] { array1 });
         packer.packer().close();
         dumpOP(dob);
-        final DataInputBuffer dib = toDataInputBuffer(dob);
-        final MessagePackUnpacker mpu = new MessagePackUnpacker(dib);
+        final MessagePackUnpacker mpu = newUnpacker(dob);
         final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(mpu,
                 new UnpackerContext(newSchemaManager(42)));
 
@@ -508,8 +588,7 @@ public class TestSimple extends BaseTest {
         packer.writeObject(new Object());
         packer.packer().close();
         dumpOP(dob);
-        final DataInputBuffer dib = toDataInputBuffer(dob);
-        final MessagePackUnpacker mpu = new MessagePackUnpacker(dib);
+        final MessagePackUnpacker mpu = newUnpacker(dob);
         final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(mpu,
                 new UnpackerContext(newSchemaManager(42)));
 
@@ -527,8 +606,7 @@ public class TestSimple extends BaseTest {
         packer.writeObject(bytes, 1, 3);
         packer.packer().close();
         dumpOP(dob);
-        final DataInputBuffer dib = toDataInputBuffer(dob);
-        final MessagePackUnpacker mpu = new MessagePackUnpacker(dib);
+        final MessagePackUnpacker mpu = newUnpacker(dob);
         final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(mpu,
                 new UnpackerContext(newSchemaManager(42)));
 
@@ -551,8 +629,7 @@ public class TestSimple extends BaseTest {
         packer.writeObject(tr);
         packer.packer().close();
         dumpOP(dob);
-        final DataInputBuffer dib = toDataInputBuffer(dob);
-        final MessagePackUnpacker mpu = new MessagePackUnpacker(dib);
+        final MessagePackUnpacker mpu = newUnpacker(dob);
         final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(mpu,
                 new UnpackerContext(newSchemaManager(42)));
 
@@ -574,8 +651,7 @@ public class TestSimple extends BaseTest {
         packer.writeObject(new TestFixed[] { tf1, tf2 }, false);
         packer.packer().close();
         dumpOP(dob);
-        final DataInputBuffer dib = toDataInputBuffer(dob);
-        final MessagePackUnpacker mpu = new MessagePackUnpacker(dib);
+        final MessagePackUnpacker mpu = newUnpacker(dob);
         final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(mpu,
                 new UnpackerContext(newSchemaManager(42)));
 
@@ -595,6 +671,78 @@ public class TestSimple extends BaseTest {
         Assert.assertEquals(8, dob.size());
     }
 
+    @Test
+    public void testColumnarArray() throws Exception {
+        final DataOutputBuffer dob = newDataOutputBuffer();
+        final ObjectPackerImpl packer = newObjectPacker(dob, 42,
+                Context.COLUMNAR);
+        final TestFixed[] objects = new TestFixed[5];
+        for (int i = 0; i < objects.length; i++) {
+            objects[i] = new TestFixed();
+            objects[i].v1 = (i % 2 == 0);
+            objects[i].v2 = (i == 3);
+        }
+        packer.writeObject(objects, false);
+        packer.packer().close();
+        dumpOP(dob);
+        final byte[] bytes = dob.buffer();
+        // All v1 first, then all v2
+        final int start = dob.size() - 2 * objects.length;
+        for (int i = 0; i < objects.length; i++) {
+            Assert.assertEquals(objects[i].v1, bytes[start + i] == (byte) 0xC3);
+            Assert.assertEquals(objects[i].v2,
+                    bytes[start + objects.length + i] == (byte) 0xC3);
+        }
+        final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(
+                newUnpacker(dob), new UnpackerContext(newSchemaManager(42)));
+        final TestFixed[] array = (TestFixed[]) oui.readObject(false);
+        Assert.assertEquals(objects.length, array.length);
+        for (int i = 0; i < objects.length; i++) {
+            Assert.assertEquals(objects[i].v1, array[i].v1);
+            Assert.assertEquals(objects[i].v2, array[i].v2);
+        }
+    }
+
+    @Test
+    public void testColumnarLayoutOnWire() throws Exception {
+        final TestFixed[] objects = new TestFixed[3];
+        for (int i = 0; i < objects.length; i++) {
+            objects[i] = new TestFixed();
+            objects[i].v1 = (i == 1);
+        }
+        // Written by row: read by row, even if the reader supports columns
+        fixedColumns = false;
+        DataOutputBuffer dob = newDataOutputBuffer();
+        ObjectPackerImpl packer = newObjectPacker(dob, 42, Context.COLUMNAR);
+        packer.writeObject(objects, false);
+        packer.packer().close();
+        fixedColumns = true;
+        ObjectUnpackerImpl oui = new ObjectUnpackerImpl(newUnpacker(dob),
+                new UnpackerContext(newSchemaManager(42)));
+        final TestFixed[] array = (TestFixed[]) oui.readObject(false);
+        Assert.assertEquals(objects.length, array.length);
+        for (int i = 0; i < objects.length; i++) {
+            Assert.assertEquals(objects[i].v1, array[i].v1);
+            Assert.assertEquals(objects[i].v2, array[i].v2);
+        }
+        // Written by column: a reader without columns must fail
+        dob = newDataOutputBuffer();
+        packer = newObjectPacker(dob, 42, Context.COLUMNAR);
+        packer.writeObject(objects, false);
+        packer.packer().close();
+        fixedColumns = false;
+        oui = new ObjectUnpackerImpl(newUnpacker(dob), new UnpackerContext(
+                newSchemaManager(42)));
+        try {
+            oui.readObject(false);
+            Assert.fail("Column layout not detected");
+        } catch (final IllegalStateException e) {
+            // expected
+        } finally {
+            fixedColumns = true;
+        }
+    }
+
     @Test
     public void testMapObject() throws Exception {
         final DataOutputBuffer dob = newDataOutputBuffer();
@@ -606,8 +754,7 @@ public class TestSimple extends BaseTest {
         packer.writeObject(new TestMap[] { tf1, tf2 }, false);
         packer.packer().close();
         dumpOP(dob);
-        final DataInputBuffer dib = toDataInputBuffer(dob);
-        final MessagePackUnpacker mpu = new MessagePackUnpacker(dib);
+        final MessagePackUnpacker mpu = newUnpacker(dob);
         final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(mpu,
                 new UnpackerContext(newSchemaManager(42)));
 
@@ -623,4 +770,463 @@ public class TestSimple extends BaseTest {
         Assert.assertFalse(array[1].f1);
         Assert.assertEquals(array[1].f2, INT_VALUE);
     }
+
+    @Test
+    public void testStrings() throws Exception {
+        final String[] strings = new String[] { "", "key", "caf\u00e9",
+                "\u00ff\u0100", "\u20ac100", "smile \ud83d\ude00", "key" };
+        final DataOutputBuffer dob = newDataOutputBuffer();
+        final MessagePackPacker packer = newPacker(dob);
+        for (final String str : strings) {
+            packer.writeUTF(str);
+        }
+        packer.close();
+        final MessagePackUnpacker mpu = newUnpacker(dob);
+        mpu.setStringCache(16, 8);
+        final String[] read = new String[strings.length];
+        for (int i = 0; i < strings.length; i++) {
+            read[i] = mpu.readUTF();
+            Assert.assertEquals(strings[i], read[i]);
+        }
+        Assert.assertSame(read[1], read[read.length - 1]);
+
+        // Malformed: overlong, encoded surrogate and truncated
+        final byte[][] malformed = new byte[][] {
+                new byte[] { (byte) 0xc0, (byte) 0x80 },
+                new byte[] { (byte) 0xed, (byte) 0xa0, (byte) 0x80 },
+                new byte[] { 'a', (byte) 0xe2, (byte) 0x82 } };
+        for (final byte[] bytes : malformed) {
+            final DataOutputBuffer bad = newDataOutputBuffer();
+            final MessagePackPacker badPacker = newPacker(bad);
+            badPacker.write(bytes);
+            badPacker.close();
+            try {
+                newUnpacker(bad).readUTF();
+                Assert.fail("Malformed input accepted");
+            } catch (final MessageTypeException e) {
+                // OK
+            }
+        }
+    }
+
+    @Test
+    public void testTreeMode() throws Exception {
+        final DataOutputBuffer dob = newDataOutputBuffer();
+        final ObjectPackerImpl packer = newObjectPacker(dob, 42,
+                Context.TREE_MODE);
+        final TestFixed tf = new TestFixed();
+        tf.v1 = true;
+        // Shared object is written twice
+        packer.writeObject(new TestFixed[] { tf, tf }, false);
+        packer.packer().close();
+        dumpOP(dob);
+        final MessagePackUnpacker mpu = newUnpacker(dob);
+        final UnpackerContext uc = new UnpackerContext(newSchemaManager(42));
+        final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(mpu, uc);
+        Assert.assertTrue(uc.hasOption(Context.TREE_MODE));
+
+        final TestFixed[] array = (TestFixed[]) oui.readObject(false);
+        Assert.assertEquals(2, array.length);
+        Assert.assertNotSame(array[0], array[1]);
+        Assert.assertTrue(array[0].v1);
+        Assert.assertTrue(array[1].v1);
+        Assert.assertFalse(array[1].v2);
+        Assert.assertTrue(uc.previous.isEmpty());
+    }
+
+    @Test
+    public void testWindow() throws Exception {
+        final DataOutputBuffer dob = newDataOutputBuffer();
+        final TestFixed[] objects = new TestFixed[20];
+        for (int i = 0; i < objects.length; i++) {
+            objects[i] = new TestFixed();
+            objects[i].v1 = (i % 2 == 0);
+        }
+        final int window = 2;
+        final PackerContext pc = newPackerContext(42);
+        pc.window = window;
+        final ObjectPackerImpl windowed = new ObjectPackerImpl(newPacker(dob),
+                pc);
+        for (final TestFixed tf : objects) {
+            // Second write is a back-reference
+            windowed.writeObject(tf);
+            windowed.writeObject(tf);
+        }
+        // Evicted: written again
+        windowed.writeObject(objects[0]);
+        windowed.packer().close();
+        dumpOP(dob);
+
+        final MessagePackUnpacker mpu = newUnpacker(dob);
+        final UnpackerContext uc = new UnpackerContext(newSchemaManager(42));
+        final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(mpu, uc);
+        Assert.assertEquals(window, uc.window);
+        TestFixed first = null;
+        for (int i = 0; i < objects.length; i++) {
+            final TestFixed a = (TestFixed) oui.readObject();
+            final TestFixed b = (TestFixed) oui.readObject();
+            Assert.assertSame(a, b);
+            Assert.assertEquals(i % 2 == 0, a.v1);
+            Assert.assertTrue(uc.previous.size() <= 2 * window);
+            if (i == 0) {
+                first = a;
+            }
+        }
+        final TestFixed again = (TestFixed) oui.readObject();
+        Assert.assertNotSame(first, again);
+        Assert.assertTrue(again.v1);
+    }
+
+    @Test
+    public void testPackedArrays() throws Exception {
+        final DataOutputBuffer dob = newDataOutputBuffer();
+        final ObjectPackerImpl packer = newObjectPacker(dob, 42,
+                Context.PACKED_ARRAYS);
+        final double[] doubles = new double[5000];
+        for (int i = 0; i < doubles.length; i++) {
+            doubles[i] = i * Math.PI;
+        }
+        final int[] ints = new int[] { 0, -1, Integer.MAX_VALUE,
+                Integer.MIN_VALUE };
+        final long[] longs = new long[] { Long.MIN_VALUE, 1L << 40 };
+        final float[] floats = new float[] { 1.5f };
+        packer.writeObject(doubles);
+        packer.writeObject(ints);
+        packer.writeObject(longs);
+        packer.writeObject(floats);
+        packer.writeObject(new int[0]);
+        Helper.writePackedLongArray(packer.packer(), longs);
+        packer.packer().close();
+        final MessagePackUnpacker mpu = newUnpacker(dob);
+        final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(mpu,
+                new UnpackerContext(newSchemaManager(42)));
+
+        Assert.assertTrue(Arrays.equals(doubles, (double[]) oui.readObject()));
+        Assert.assertTrue(Arrays.equals(ints, (int[]) oui.readObject()));
+        Assert.assertTrue(Arrays.equals(longs, (long[]) oui.readObject()));
+        Assert.assertTrue(Arrays.equals(floats, (float[]) oui.readObject()));
+        Assert.assertEquals(0, ((int[]) oui.readObject()).length);
+        Assert.assertTrue(Arrays.equals(longs, Helper.readLongArray(mpu)));
+    }
+
+    @Test
+    public void testBulkReads() throws Exception {
+        final DataOutputBuffer dob = newDataOutputBuffer();
+        final MessagePackPacker packer = newPacker(dob);
+        final long[] longs = new long[] { 0, -1, 127, 128, 70000,
+                Long.MAX_VALUE, Long.MIN_VALUE };
+        Helper.writeLongArray(packer, longs);
+        packer.writeArrayBegin(3);
+        packer.writeDouble(1.0);
+        packer.writeFloat(2.0f);
+        packer.writeDouble(-3.0);
+        packer.writeArrayEnd();
+        packer.close();
+        final MessagePackUnpacker mpu = newUnpacker(dob);
+
+        final long[] dst = new long[longs.length + 2];
+        Assert.assertEquals(longs.length, mpu.readArrayBegin());
+        Assert.assertEquals(4, mpu.readLongs(dst, 1, 4));
+        Assert.assertEquals(longs.length - 4,
+                mpu.readLongs(dst, 5, dst.length - 5));
+        mpu.readArrayEnd(true);
+        Assert.assertTrue(Arrays.equals(longs,
+                Arrays.copyOfRange(dst, 1, longs.length + 1)));
+
+        final double[] doubles = new double[3];
+        Assert.assertEquals(3, mpu.readArrayBegin());
+        Assert.assertEquals(3, mpu.readDoubles(doubles, 0, 10));
+        mpu.readArrayEnd(true);
+        Assert.assertTrue(Arrays.equals(new double[] { 1.0, 2.0, -3.0 },
+                doubles));
+    }
+
+    @Test
+    public void testSkipRaws() throws Exception {
+        final DataOutputBuffer dob = newDataOutputBuffer();
+        final MessagePackPacker packer = newPacker(dob);
+        packer.writeArrayBegin(4);
+        packer.writeUTF("dropped");
+        packer.write(new byte[100000]);
+        packer.writeInt(INT_VALUE);
+        packer.write(new byte[0]);
+        packer.writeArrayEnd();
+        packer.writeArrayBegin(2);
+        packer.write(new byte[1000]);
+        packer.writeUTF("kept");
+        packer.writeArrayEnd();
+        packer.close();
+        final MessagePackUnpacker mpu = newUnpacker(dob);
+
+        Assert.assertEquals(4, mpu.readArrayBegin());
+        mpu.skip();
+        mpu.skip();
+        Assert.assertEquals(INT_VALUE, mpu.readInt());
+        mpu.readArrayEnd(false);
+        Assert.assertEquals(2, mpu.readArrayBegin());
+        mpu.skip();
+        Assert.assertEquals("kept", mpu.readUTF());
+        mpu.readArrayEnd(true);
+    }
+
+    @Test
+    public void testClassInfo() throws Exception {
+        final PackerContext pc = newPackerContext(42);
+        final ClassInfo info = pc.getSchema().classInfo(String[][].class);
+        Assert.assertEquals(2, info.depth);
+        Assert.assertSame(pc.findTemplate(String.class), info.template);
+        Assert.assertSame(info, pc.getSchema().classInfo(String[][].class));
+        Assert.assertSame(pc.findTemplate(String.class),
+                pc.findTemplate(String[].class));
+        Assert.assertNull(pc.findTemplate(Thread.class));
+        Assert.assertNull(pc.getSchema().classInfo(Thread[].class).template);
+    }
+
+    @Test
+    public void testSharedTemplates() throws Exception {
+        final Template<?>[] user = extended();
+        final SchemaManager sm = new BasicSchemaManager(user) {
+            @Override
+            protected int getBasicTemplateCount(final int schemaID) {
+                return (schemaID == 1) ? 27 : 28;
+            }
+        };
+        final Schema s1 = sm.getSchema(Schema.FORMAT, 1);
+        final Schema s2 = sm.getSchema(Schema.FORMAT, 2);
+        Assert.assertSame(s1, sm.getSchema(Schema.FORMAT, 1));
+        Assert.assertSame(s1.basicTemplates, s2.basicTemplates);
+        Assert.assertSame(s1.idToTemplate[0], s2.idToTemplate[0]);
+        // Same ID: shared. Other ID: copied.
+        Assert.assertSame(user[0], s1.idToTemplate[27]);
+        Assert.assertNotSame(user[0], s2.idToTemplate[28]);
+        Assert.assertEquals(28, s2.idToTemplate[28].getID());
+        Assert.assertEquals(27, user[0].getID());
+    }
+
+    @Test
+    public void testObjectCodec() throws Exception {
+        final ObjectCodec codec = new ObjectCodec(newSchemaManager(42), 42);
+        byte[] bytes = null;
+        for (int i = 0; i < 3; i++) {
+            final String s = "message " + i;
+            final ObjectPacker op = codec.startPacking();
+            op.writeObject(s);
+            op.writeObject(s);
+            final DataOutputBuffer dob = codec.finishPacking();
+            // Same array every time, unless it grows
+            bytes = (bytes == null) ? new byte[256] : bytes;
+            System.arraycopy(dob.buffer(), 0, bytes, 10, dob.size());
+            final ObjectUnpacker ou = codec.startUnpacking(bytes, 10,
+                    dob.size());
+            final Object first = ou.readObject();
+            Assert.assertEquals(s, first);
+            Assert.assertSame(first, ou.readObject());
+            Assert.assertEquals(1, codec.unpackerContext().previous.size());
+            ou.close();
+        }
+    }
+
+    @Test
+    public void testSession() throws Exception {
+        final DataOutputBuffer dob = newDataOutputBuffer();
+        final ObjectPackerImpl packer = newObjectPacker(dob, 42,
+                Context.SESSION);
+        final String s = "hello world";
+        packer.packer().flush();
+        final int p0 = dob.size();
+        packer.startMessage(false).writeObject(s);
+        packer.packer().flush();
+        final int p1 = dob.size();
+        packer.startMessage(false).writeObject(s);
+        packer.packer().flush();
+        final int p2 = dob.size();
+        packer.startMessage(true).writeObject(s);
+        packer.packer().close();
+        // The second message is a back-reference; the third is not
+        Assert.assertTrue(p2 - p1 < p1 - p0);
+        Assert.assertEquals(p1 - p0, dob.size() - p2);
+
+        final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(
+                newUnpacker(dob), new UnpackerContext(newSchemaManager(42)));
+        Assert.assertFalse(oui.startMessage());
+        final Object first = oui.readObject();
+        Assert.assertEquals(s, first);
+        Assert.assertFalse(oui.startMessage());
+        Assert.assertSame(first, oui.readObject());
+        Assert.assertTrue(oui.startMessage());
+        final Object third = oui.readObject();
+        Assert.assertEquals(s, third);
+        Assert.assertNotSame(first, third);
+        oui.close();
+    }
+
+    @Test
+    public void testLayout() throws Exception {
+        final DataOutputBuffer dob = newDataOutputBuffer();
+        final PackerContext pc = newPackerContext(42);
+        pc.templateCounts = new int[pc.getSchema().idToTemplate.length];
+        final ObjectPackerImpl profiler = new ObjectPackerImpl(newPacker(dob),
+                pc);
+        final TestFixed tf = new TestFixed();
+        tf.v2 = true;
+        profiler.writeObject(new TestRaw());
+        profiler.writeObject(tf);
+        profiler.writeObject(new TestFixed());
+        final int[] layout = Schema.layout(pc.templateCounts);
+        Assert.assertTrue(Arrays.toString(layout),
+                Arrays.equals(new int[] { 29, 28 }, layout));
+
+        final SchemaManager sm = new BasicSchemaManager(extended()) {
+            @Override
+            protected int getBasicTemplateCount(final int schemaID) {
+                return 28;
+            }
+
+            @Override
+            protected int[] getLayout(final int schemaID) {
+                return layout;
+            }
+        };
+        final Schema schema = sm.getSchema(Schema.FORMAT, 42);
+        Assert.assertEquals(0, schema.toWire(29));
+        Assert.assertEquals(1, schema.toWire(28));
+        Assert.assertEquals(2, schema.toWire(0));
+        Assert.assertEquals(29, schema.fromWire(0));
+
+        dob.reset();
+        final PackerContext pc2 = new PackerContext(sm);
+        pc2.schemaID = 42;
+        final ObjectPackerImpl packer = new ObjectPackerImpl(newPacker(dob),
+                pc2);
+        packer.writeObject(tf);
+        packer.writeObject("text");
+        packer.packer().close();
+        final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(
+                newUnpacker(dob), new UnpackerContext(sm));
+        final TestFixed read = (TestFixed) oui.readObject();
+        Assert.assertFalse(read.v1);
+        Assert.assertTrue(read.v2);
+        Assert.assertEquals("text", oui.readObject());
+    }
+
+    @Test
+    public void testRelativeRefs() throws Exception {
+        final int[] sizes = new int[2];
+        for (int relative = 0; relative < 2; relative++) {
+            final DataOutputBuffer dob = newDataOutputBuffer();
+            final ObjectPackerImpl packer = newObjectPacker(dob, 42,
+                    (relative == 1) ? Context.RELATIVE_REFS : 0);
+            final String[] strings = new String[300];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = "s" + i;
+                packer.writeObject(strings[i]);
+            }
+            packer.packer().flush();
+            final int before = dob.size();
+            packer.writeObject(strings[299]);
+            packer.packer().flush();
+            sizes[relative] = dob.size() - before;
+            packer.writeObject(strings[0]);
+            packer.packer().close();
+
+            final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(
+                    newUnpacker(dob), new UnpackerContext(
+                            newSchemaManager(42)));
+            final Object[] read = new Object[strings.length];
+            for (int i = 0; i < strings.length; i++) {
+                read[i] = oui.readObject();
+                Assert.assertEquals(strings[i], read[i]);
+            }
+            Assert.assertSame(read[299], oui.readObject());
+            Assert.assertSame(read[0], oui.readObject());
+        }
+        // The reference to the last object is a fixnum, instead of 3 bytes
+        Assert.assertEquals(3, sizes[0]);
+        Assert.assertEquals(1, sizes[1]);
+    }
+
+    @Test
+    public void testDedupPolicy() throws Exception {
+        final int[] sizes = new int[2];
+        final int[] shared = new int[] { 1, 2, 3 };
+        for (int adaptive = 0; adaptive < 2; adaptive++) {
+            final DataOutputBuffer dob = newDataOutputBuffer();
+            final PackerContext pc = newPackerContext(42);
+            if (adaptive == 1) {
+                pc.dedupPolicy = new AdaptiveDedupPolicy(64, 5);
+            }
+            final ObjectPackerImpl packer = new ObjectPackerImpl(
+                    newPacker(dob), pc);
+            packer.writeObject(shared);
+            // Never repeated, so the Strings stop being tracked
+            for (int i = 0; i < 300; i++) {
+                packer.writeObject("unique" + i);
+                packer.writeObject(Integer.valueOf(i % 10));
+            }
+            // Still a back-reference, if the reader stayed in lockstep
+            packer.writeObject(shared);
+            packer.packer().close();
+            sizes[adaptive] = dob.size();
+
+            final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(
+                    newUnpacker(dob), new UnpackerContext(
+                            newSchemaManager(42)));
+            final Object first = oui.readObject();
+            for (int i = 0; i < 300; i++) {
+                Assert.assertEquals("unique" + i, oui.readObject());
+                Assert.assertEquals(Integer.valueOf(i % 10),
+                        oui.readObject());
+            }
+            Assert.assertSame(first, oui.readObject());
+        }
+        Assert.assertTrue(sizes[1] <= sizes[0]);
+    }
+
+    @Test
+    public void testFinalArrayElementReference() throws Exception {
+        final TestFixed[] objects = new TestFixed[] { new TestFixed(), null,
+                new TestFixed() };
+        objects[2].v2 = true;
+        final DataOutputBuffer dob = newDataOutputBuffer();
+        final ObjectPackerImpl packer = newObjectPacker(dob);
+        // Can contain null, so the elements are written one by one
+        packer.writeObject(objects, true);
+        packer.writeObject(objects[2]);
+        packer.packer().close();
+        dumpOP(dob);
+
+        final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(
+                newUnpacker(dob), new UnpackerContext(newSchemaManager(42)));
+        final TestFixed[] array = (TestFixed[]) oui.readObject();
+        Assert.assertEquals(3, array.length);
+        Assert.assertNull(array[1]);
+        Assert.assertTrue(array[2].v2);
+        Assert.assertSame(array[2], oui.readObject());
+    }
+
+    @Test
+    public void testUntrackedThenBackReference() throws Exception {
+        final int[] shared = new int[] { 1, 2, 3 };
+        final TestUntracked untracked = new TestUntracked();
+        untracked.value = 42;
+        final DataOutputBuffer dob = newDataOutputBuffer();
+        final ObjectPackerImpl packer = newObjectPacker(dob);
+        packer.writeObject(untracked);
+        packer.writeObject(shared);
+        packer.writeObject(untracked);
+        // Must still point to shared, and not to one of the untracked values
+        packer.writeObject(shared);
+        packer.packer().close();
+        dumpOP(dob);
+
+        final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(
+                newUnpacker(dob), new UnpackerContext(newSchemaManager(42)));
+        final TestUntracked u1 = (TestUntracked) oui.readObject();
+        final Object first = oui.readObject();
+        final TestUntracked u2 = (TestUntracked) oui.readObject();
+        Assert.assertEquals(42, u1.value);
+        Assert.assertEquals(42, u2.value);
+        Assert.assertNotSame(u1, u2);
+        Assert.assertSame(first, oui.readObject());
+    }
 }
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2013 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.msgpack;
+
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.blockwithme.msgpack.impl.ObjectPackerImpl;
+import com.blockwithme.msgpack.impl.ObjectUnpackerImpl;
+import com.blockwithme.msgpack.sample.GeneratedSample;
+import com.blockwithme.msgpack.templates.Template;
+import com.blockwithme.msgpack.templates.TemplateGenerator;
+import com.blockwithme.msgpack.templates.UnpackerContext;
+import com.blockwithme.util.DataOutputBuffer;
+
+/**
+ * Tests the templates generated at runtime by the TemplateGenerator.
+ *
+ * @author monster
+ */
+public class TestTemplateGenerator extends BaseTest {
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    protected Template[] extended(final int schema) {
+        return TemplateGenerator.generate(1, GeneratedSample.class);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final GeneratedSample first = new GeneratedSample();
+        final GeneratedSample second = new GeneratedSample();
+        first.set(42, 1L << 40, true, 0.5, 'x', "first",
+                new int[] { 1, 2, 3 }, second);
+        // Cycle: second points back to first
+        second.set(-1, -2, false, -0.25, '€', null, null, first);
+
+        final DataOutputBuffer dob = newDataOutputBuffer();
+        final ObjectPackerImpl packer = newObjectPacker(dob);
+        packer.writeObject(first);
+        packer.packer().close();
+        dumpOP(dob);
+        final ObjectUnpackerImpl oui = new ObjectUnpackerImpl(
+                newUnpacker(dob), new UnpackerContext(newSchemaManager(42)));
+
+        final GeneratedSample a = (GeneratedSample) oui.readObject();
+        Assert.assertEquals(42, a.getCount());
+        Assert.assertEquals(1L << 40, a.getTotal());
+        Assert.assertTrue(a.isFlag());
+        Assert.assertEquals(0.5, a.getRatio());
+        Assert.assertEquals('x', a.getLetter());
+        Assert.assertEquals("first", a.getName());
+        Assert.assertTrue(Arrays.equals(new int[] { 1, 2, 3 }, a.getValues()));
+        final GeneratedSample b = a.getNext();
+        Assert.assertNotNull(b);
+        Assert.assertEquals(-1, b.getCount());
+        Assert.assertEquals(-2, b.getTotal());
+        Assert.assertFalse(b.isFlag());
+        Assert.assertEquals(-0.25, b.getRatio());
+        Assert.assertEquals('€', b.getLetter());
+        Assert.assertNull(b.getName());
+        Assert.assertNull(b.getValues());
+        Assert.assertSame(a, b.getNext());
+    }
+
+    @Test
+    public void testSameGeneratedClass() throws Exception {
+        final Template<GeneratedSample> t1 = TemplateGenerator.generate(
+                GeneratedSample.class, 1);
+        final Template<GeneratedSample> t2 = TemplateGenerator.generate(
+                GeneratedSample.class, 1);
+        Assert.assertNotSame(t1, t2);
+        Assert.assertSame(t1.getClass(), t2.getClass());
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2013 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.msgpack.sample;
+
+/**
+ * A plain class, in another package than the tests, with package-private
+ * fields, for the generated templates.
+ *
+ * @author monster
+ */
+public class GeneratedSample {
+    int count;
+    long total;
+    boolean flag;
+    double ratio;
+    char letter;
+    String name;
+    int[] values;
+    GeneratedSample next;
+
+    /** Sets all the fields. */
+    public GeneratedSample set(final int count, final long total,
+            final boolean flag, final double ratio, final char letter,
+            final String name, final int[] values, final GeneratedSample next) {
+        this.count = count;
+        this.total = total;
+        this.flag = flag;
+        this.ratio = ratio;
+        this.letter = letter;
+        this.name = name;
+        this.values = values;
+        this.next = next;
+        return this;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public boolean isFlag() {
+        return flag;
+    }
+
+    public double getRatio() {
+        return ratio;
+    }
+
+    public char getLetter() {
+        return letter;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int[] getValues() {
+        return values;
+    }
+
+    public GeneratedSample getNext() {
+        return next;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2013 Sebastien Diot.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blockwithme.util;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Tests the ObjectTracker.
+ *
+ * @author monster
+ */
+public class TestObjectTracker {
+
+    @Test
+    public void testTrack() {
+        final ObjectTracker tracker = new ObjectTracker(2);
+        final Object[] objects = new Object[1000];
+        for (int i = 0; i < objects.length; i++) {
+            objects[i] = (i % 2 == 0) ? new Object() : ("s" + i);
+            Assert.assertEquals(i, tracker.position());
+            Assert.assertEquals(-1, tracker.track(objects[i], i % 2 != 0));
+        }
+        Assert.assertEquals(-1, tracker.track(null, false));
+        for (int i = 0; i < objects.length; i++) {
+            if (i % 2 == 0) {
+                Assert.assertEquals(i, tracker.track(objects[i], false));
+            } else {
+                // Equal, but not identical
+                Assert.assertEquals(i,
+                        tracker.track(new String("s" + i), true));
+                // Identity and equality are tracked separately
+                Assert.assertEquals(-1, tracker.track(objects[i], false));
+            }
+        }
+        tracker.clear();
+        Assert.assertEquals(0, tracker.position());
+        Assert.assertEquals(-1, tracker.track(objects[0], false));
+        Assert.assertEquals(0, tracker.track(objects[0], false));
+    }
+
+    @Test
+    public void testWindow() {
+        final ObjectTracker tracker = new ObjectTracker(2);
+        tracker.setWindow(10);
+        final Object[] objects = new Object[1000];
+        for (int i = 0; i < objects.length; i++) {
+            objects[i] = (i % 3 == 0) ? ("s" + i) : new Object();
+            Assert.assertEquals(-1, tracker.track(objects[i], i % 3 == 0));
+            for (int j = Math.max(0, i - 9); j <= i; j++) {
+                Assert.assertEquals(j, tracker.track(objects[j], j % 3 == 0));
+            }
+        }
+        // Evicted objects are new again
+        Assert.assertEquals(-1, tracker.track(objects[0], true));
+        Assert.assertEquals(1000, tracker.track(objects[0], true));
+    }
+}